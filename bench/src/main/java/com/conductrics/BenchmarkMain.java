@@ -0,0 +1,20 @@
+package com.conductrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Runs the JMH benchmarks, like org.openjdk.jmh.Main, but with the GC profiler on by default,
+ * so that every result includes its allocation rate (gc.alloc.rate.norm, in bytes per operation).
+ * Any JMH option can be given, eg: java -jar target/benchmarks.jar EndToEnd -t 4
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		if( ! options.contains("-prof") ) {
+			options.add(0, "-prof");
+			options.add(1, "gc");
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,78 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.conductrics.stub.StubServer;
+
+/** Measures select() and reward() end to end, against a StubServer on the loopback interface.
+ * Each operation issues a number of concurrent calls and waits for all of them,
+ * so Throughput shows how many of those rounds complete per second and SampleTime shows the latency distribution of a round.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+	/** The number of calls in flight at the same time. */
+	@Param({ "1", "8", "32" })
+	public int concurrency;
+
+	private StubServer stub;
+	private Conductrics api;
+	private final AtomicLong sessions = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		stub = new StubServer(0).start();
+		api = new Conductrics(stub.getUrl(), "api-benchmark", new ClientOptions()
+			.setMaxThreads(concurrency)
+			.setMaxConnectionsPerHost(concurrency));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		api.shutdown();
+		stub.stop();
+	}
+
+	private RequestOptions options() {
+		return new RequestOptions("session-" + sessions.incrementAndGet());
+	}
+
+	@Benchmark
+	public Object select() {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+		for( int i = 0; i < concurrency; i++ ) {
+			calls[i] = api.selectAsync(options(), "a-example");
+		}
+		return CompletableFuture.allOf(calls).join();
+	}
+
+	@Benchmark
+	public Object reward() {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+		for( int i = 0; i < concurrency; i++ ) {
+			calls[i] = api.rewardAsync(options(), "g-example", 2.0);
+		}
+		return CompletableFuture.allOf(calls).join();
+	}
+}
@@ -0,0 +1,80 @@
+package com.conductrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.conductrics.stub.StubServer;
+
+/** Measures turning an API response into an ExecResponse, with its SelectResponse and GoalResponse objects,
+ * both by streaming (as exec() does) and through a JSONObject tree (the old way, for comparison).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	/** The number of selections (and as many rewards) in one response. */
+	@Param({ "1", "10", "100" })
+	public int items;
+
+	private byte[] payload;
+	private RequestOptions opts = new RequestOptions("session-0123456789");
+
+	@Setup
+	public void setup() {
+		JSONArray commands = new JSONArray();
+		for( int i = 0; i < items; i++ ) {
+			commands.put(new JSONObject().put("a", "agent-" + i));
+			commands.put(new JSONObject().put("g", "goal-" + i).put("v", 1.5));
+		}
+		JSONObject response = StubServer.answer(new JSONObject().put("commands", commands));
+		// a realistic response also carries metadata, traits and a log
+		JSONObject data = response.getJSONObject("data");
+		JSONArray selections = data.getJSONArray("items");
+		for( int i = 0; i < selections.length(); i++ ) {
+			JSONObject item = selections.getJSONObject(i);
+			if( item.has("a") ) item.put("md", new JSONObject().put("title", "Variation B").put("color", "#00ff00"));
+		}
+		data.put("traits", new JSONArray().put("customer:returning").put("segment:gold"));
+		data.put("log", new JSONArray().put("Selection made by random policy"));
+		payload = response.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public void streaming(Blackhole bh) throws IOException {
+		ExecResponse response = ExecResponse.read(new ByteArrayInputStream(payload), opts);
+		for( int i = 0; i < items; i++ ) {
+			bh.consume(response.getSelection("agent-" + i, "A"));
+			bh.consume(response.getReward("goal-" + i));
+		}
+	}
+
+	@Benchmark
+	public void jsonObject(Blackhole bh) {
+		JSONObject json = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+		ExecResponse response = new ExecResponse(json.getJSONObject("data"), opts);
+		for( int i = 0; i < items; i++ ) {
+			bh.consume(response.getSelection("agent-" + i, "A"));
+			bh.consume(response.getReward("goal-" + i));
+		}
+	}
+}
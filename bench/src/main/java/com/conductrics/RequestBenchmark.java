@@ -0,0 +1,68 @@
+package com.conductrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures building a request: RequestOptions, and the body and URL that exec() sends. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+	/** The number of commands in one request. */
+	@Param({ "1", "10", "100" })
+	public int commands;
+
+	private JSONArray body;
+	private RequestOptions opts;
+
+	@Setup
+	public void setup() {
+		body = new JSONArray();
+		for( int i = 0; i < commands; i++ ) {
+			body.put(new JSONObject().put("a", "agent-" + i).put("c", new JSONArray().put("A").put("B")));
+		}
+		opts = options();
+	}
+
+	private static RequestOptions options() {
+		return new RequestOptions("session-0123456789")
+			.setUserAgent("Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15")
+			.setInput("country", "Deutschland")
+			.setInput("city", "M\u00fcnchen")
+			.setTrait("customer", "returning")
+			.setTrait("segment", "gold")
+			.setDefault("agent-0", "A")
+			.setTimeout(1000);
+	}
+
+	@Benchmark
+	public RequestOptions buildOptions() {
+		return options();
+	}
+
+	@Benchmark
+	public byte[] serializeBody() {
+		return RequestWriter.get().body(body, opts.getInputs());
+	}
+
+	@Benchmark
+	public String serializeUrl() {
+		return RequestWriter.get().url("https://api.conductrics.com/owner/v3/agent-api", "api-key", opts.params(), opts.getTraits());
+	}
+}
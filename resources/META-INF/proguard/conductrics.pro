@@ -0,0 +1,7 @@
+# Consumer rules, applied by R8/ProGuard to apps that include this jar.
+
+# PrometheusExporter uses the HTTP server of the JDK, which Android does not have; it is only loaded if it is used.
+-dontwarn com.sun.net.httpserver.**
+
+# HttpClientTransport uses java.net.http (Java 11+), which Android does not have; it is only loaded if setHttpClient(true) is used.
+-dontwarn java.net.http.**
@@ -0,0 +1,81 @@
+package com.conductrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An AsyncLogger hands log messages to another Logger on a background thread,
+ * so that the threads making requests never wait for the I/O (or the locks) of the underlying Logger.
+ * Messages are kept in a bounded queue; when it is full, new messages are dropped (and counted) rather than blocking a request.
+ */
+public class AsyncLogger implements Logger {
+	private static class Message {
+		final LogLevel level;
+		final String text;
+		Message(LogLevel level, String text) {
+			this.level = level;
+			this.text = text;
+		}
+	}
+	private static final Message STOP = new Message(LogLevel.Off, null);
+
+	private final Logger target;
+	private final BlockingQueue<Message> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	/** Construct an AsyncLogger that writes to target from a background (daemon) thread.
+	 * @param target The Logger that does the actual writing; only this AsyncLogger's thread calls its log().
+	 * @param capacity The maximum number of messages waiting to be written.
+	 */
+	public AsyncLogger(Logger target, int capacity) {
+		if( target == null ) throw new IllegalArgumentException("target");
+		if( capacity < 1 ) throw new IllegalArgumentException("capacity");
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.thread = new Thread(new Runnable() {
+			public void run() { drain(); }
+		}, "conductrics-log");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private void drain() {
+		try {
+			while( true ) {
+				Message m = queue.take();
+				if( m == STOP ) return;
+				try {
+					target.log(m.level, m.text);
+				} catch( RuntimeException e ) {
+					// a broken Logger must not stop the other messages from being written
+				}
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isEnabled(LogLevel level) {
+		return ! closed && target.isEnabled(level);
+	}
+	public void log(LogLevel level, String message) {
+		if( closed || ! queue.offer(new Message(level, message)) ) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/** Return the number of messages that were dropped, because the queue was full or the logger was closed. */
+	public long getDropped() { return dropped.get(); }
+
+	/** Write the messages still in the queue, then stop the background thread, waiting at most timeout milliseconds. */
+	public void close(long timeout) throws InterruptedException {
+		closed = true;
+		if( ! queue.offer(STOP, timeout, TimeUnit.MILLISECONDS) ) {
+			thread.interrupt();
+		}
+		thread.join(timeout);
+	}
+}
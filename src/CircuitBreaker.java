@@ -0,0 +1,191 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.JSONException;
+
+/** A CircuitBreaker stops sending requests to an API that is failing, so that callers get their default selections at once,
+ * instead of each waiting for its own timeout.
+ * It watches the outcome of the last requests (a sliding window); once too many of them failed, the circuit opens,
+ * and every request fails straight away with a CircuitOpenException, like an offline request, without a network call.
+ * After the open duration, a few probe requests are let through (half-open): if they all succeed the circuit closes again,
+ * if one fails it opens for another open duration.
+ * <pre>
+ * new ClientOptions().setCircuitBreaker( new CircuitBreaker().setFailureRate(0.5).setWindow(100, 20).setOpenDuration(5000) )
+ * </pre>
+ * A CircuitBreaker keeps the state of one API, it should not be shared by instances that use different APIs.
+ */
+public class CircuitBreaker {
+	/** The states of a CircuitBreaker. Closed lets every request through, Open none, and HalfOpen only a few probes. */
+	public static enum State {
+		Closed,
+		Open,
+		HalfOpen
+	}
+
+	private double failureRate = 0.5;
+	private int windowSize = 100;
+	private int minRequests = 20;
+	private int openDuration = 5000;
+	private int probes = 3;
+	private final List<Callback<State>> listeners = new CopyOnWriteArrayList<>();
+
+	// guarded by this
+	private State state = State.Closed;
+	private boolean[] window = new boolean[windowSize]; // true for each failure, in a ring
+	private int next = 0;
+	private int count = 0; // outcomes in the window
+	private int failures = 0; // failures in the window
+	private long openedAt = 0; // System.nanoTime() when the circuit last opened
+	private int probing = 0; // probes sent while half-open, and not answered yet
+	private int probed = 0; // probes that succeeded while half-open
+	private long shortCircuited = 0;
+
+	/** Construct a CircuitBreaker with the default settings: open when half of the last 100 requests (and at least 20) failed, for 5 seconds, then send 3 probes. */
+	public CircuitBreaker() { }
+
+	/** Return the share (0-1) of failed requests in the window that opens the circuit. */
+	public double getFailureRate() { return failureRate; }
+	/** Open the circuit when this share (0-1) of the requests in the window failed, eg 0.5. */
+	public CircuitBreaker setFailureRate(double value) {
+		if( value <= 0 || value > 1 ) throw new IllegalArgumentException("failureRate");
+		failureRate = value;
+		return this;
+	}
+
+	/** Return the number of recent requests whose outcome is remembered. */
+	public int getWindowSize() { return windowSize; }
+	/** Return the number of requests the window must hold before the circuit can open. */
+	public int getMinRequests() { return minRequests; }
+	/** Judge the API by the outcome of the last size requests, but only once at least minRequests of them are known. */
+	public synchronized CircuitBreaker setWindow(int size, int minRequests) {
+		if( size < 1 ) throw new IllegalArgumentException("size");
+		if( minRequests < 1 || minRequests > size ) throw new IllegalArgumentException("minRequests");
+		windowSize = size;
+		this.minRequests = minRequests;
+		window = new boolean[size];
+		next = count = failures = 0;
+		return this;
+	}
+
+	/** Return how long (in milliseconds) the circuit stays open before probing the API again. */
+	public int getOpenDuration() { return openDuration; }
+	/** Keep the circuit open for this many milliseconds, before letting probe requests through. */
+	public CircuitBreaker setOpenDuration(int ms) {
+		if( ms < 0 ) throw new IllegalArgumentException("ms");
+		openDuration = ms;
+		return this;
+	}
+
+	/** Return the number of probe requests that must succeed to close the circuit. */
+	public int getProbes() { return probes; }
+	/** While half-open, let this many probe requests through; the circuit closes when they all succeed. */
+	public CircuitBreaker setProbes(int value) {
+		if( value < 1 ) throw new IllegalArgumentException("probes");
+		probes = value;
+		return this;
+	}
+
+	/** Call listener.onValue(State) each time the state of the circuit changes. It runs on the thread that caused the change, so it should be quick. */
+	public void addListener(Callback<State> listener) { listeners.add(listener); }
+	public void removeListener(Callback<State> listener) { listeners.remove(listener); }
+
+	/** Return the current State, Open becomes HalfOpen only when the next request asks to go through. */
+	public synchronized State getState() { return state; }
+	/** Return the share (0-1) of failed requests in the window. */
+	public synchronized double getCurrentFailureRate() { return count == 0 ? 0 : (double)failures / count; }
+	/** Return the number of requests that failed straight away, because the circuit was open. */
+	public synchronized long getShortCircuited() { return shortCircuited; }
+
+	/** Return true if a request that failed with this error counts against the API.
+	 * By default: network errors and timeouts, malformed responses, and HTTP 5xx and 429; not HTTP 4xx, nor requests that were cancelled or rejected by a full queue.
+	 * Override this to count other errors.
+	 */
+	public boolean isFailure(Exception e) {
+		if( e instanceof HttpStatusException ) {
+			int status = ((HttpStatusException)e).getStatus();
+			return status >= 500 || status == 429;
+		}
+		return e instanceof IOException || e instanceof JSONException;
+	}
+
+	// return true if a request may be sent now
+	boolean allow() {
+		State changed = null;
+		boolean allowed;
+		synchronized( this ) {
+			if( state == State.Open && System.nanoTime() - openedAt >= openDuration * 1000000L ) {
+				state = changed = State.HalfOpen;
+				probing = probed = 0;
+			}
+			allowed = state == State.Closed || (state == State.HalfOpen && probing + probed < probes);
+			if( ! allowed ) {
+				shortCircuited++;
+			} else if( state == State.HalfOpen ) {
+				probing++;
+			}
+		}
+		return notify(changed, allowed);
+	}
+
+	// a request that was allowed is done, error is null if it succeeded
+	void record(Exception error) {
+		boolean failed = error != null && isFailure(error);
+		boolean ignored = error != null && ! failed; // says nothing about the API
+		State changed = null;
+		synchronized( this ) {
+			switch( state ) {
+				case Closed:
+					if( ignored ) break;
+					if( count == windowSize ) {
+						if( window[next] ) failures--;
+					} else {
+						count++;
+					}
+					window[next] = failed;
+					next = (next + 1) % windowSize;
+					if( failed ) failures++;
+					if( count >= minRequests && failures >= failureRate * count ) changed = open();
+					break;
+				case HalfOpen:
+					if( probing > 0 ) probing--;
+					if( failed ) {
+						changed = open();
+					} else if( ! ignored && ++probed >= probes ) {
+						state = changed = State.Closed;
+						next = count = failures = 0;
+					}
+					break;
+				default:
+					break; // sent before the circuit opened
+			}
+		}
+		notify(changed, true);
+	}
+
+	// a request that was allowed was not sent after all, so it says nothing about the API
+	synchronized void release() {
+		if( state == State.HalfOpen && probing > 0 ) probing--;
+	}
+
+	private State open() {
+		state = State.Open;
+		openedAt = System.nanoTime();
+		return state;
+	}
+
+	private boolean notify(State changed, boolean result) {
+		if( changed != null ) {
+			for( Callback<State> listener : listeners ) {
+				try {
+					listener.onValue(changed);
+				} catch( RuntimeException e ) {
+					// a broken listener must not break the request
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,10 @@
+package com.conductrics;
+
+/** A CircuitOpenException is the error of a request that was not sent, because the CircuitBreaker is open. */
+public class CircuitOpenException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException() {
+		super("circuit open");
+	}
+}
@@ -0,0 +1,326 @@
+package com.conductrics;
+
+import java.util.concurrent.Executor;
+
+/** ClientOptions contains the configuration of a Conductrics instance, given once to the constructor.
+ * Unlike RequestOptions, these settings apply to every request made by that instance.
+ */
+public class ClientOptions {
+	private int maxConnectionsPerHost = keepAliveCacheSize();
+	private int idleTimeout = 30000;
+	private int tlsSessionCacheSize = 100;
+	private Executor executor = null;
+	private boolean virtualThreads = false;
+	private int maxThreads = 10;
+	private int maxQueueSize = 1000;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.Reject;
+	private int queueTimeout = 0;
+	private int rewardBatchSize = 1;
+	private int rewardBatchDelay = 0;
+	private int selectCoalesceSize = 1;
+	private int selectCoalesceWindow = 0;
+	private int selectionCacheSize = 0;
+	private int selectionCacheTTL = 0;
+	private int staleWhileRevalidate = 0;
+	private Logger logger = new ConsoleLogger(LogLevel.Info);
+	private int gzipRequests = 0;
+	private boolean gzipResponses = true;
+	private RetryPolicy retryPolicy = null;
+	private HedgePolicy hedgePolicy = null;
+	private CircuitBreaker circuitBreaker = null;
+	private RewardJournal rewardJournal = null;
+	private boolean orderedSessions = false;
+	private boolean httpClient = false;
+	private Transport transport = null;
+
+	/** Construct a new ClientOptions, with all the default settings. */
+	public ClientOptions() { }
+
+	// the number of idle sockets per host that the platform keeps alive between requests (the http.maxConnections property, 5 by default)
+	static int keepAliveCacheSize() {
+		try {
+			int n = Integer.getInteger("http.maxConnections", 5);
+			return n > 0 ? n : 5;
+		} catch( SecurityException e ) {
+			return 5;
+		}
+	}
+
+	/** Return the maximum number of connections that may be open to one host at the same time. */
+	public int getMaxConnectionsPerHost() { return maxConnectionsPerHost; }
+	/** Set the maximum number of connections that may be open to one host at the same time.
+	 * Requests beyond this limit wait (up to their timeout) for a connection to become free.
+	 * The platform keeps at most http.maxConnections idle sockets per host alive between requests: above that, the extra sockets are closed
+	 * after use, and the next burst of requests opens (and handshakes) them again. So the default is http.maxConnections (5, unless that property is set);
+	 * raise both together.
+	 */
+	public ClientOptions setMaxConnectionsPerHost(int value) {
+		if( value < 1 ) throw new IllegalArgumentException("maxConnectionsPerHost");
+		maxConnectionsPerHost = value;
+		return this;
+	}
+
+	/** Return how long (in milliseconds) a TLS session is kept for resumption. */
+	public int getIdleTimeout() { return idleTimeout; }
+	/** Set how long (in milliseconds) a TLS session is kept, so that a new connection can resume it instead of a full handshake.
+	 * Idle sockets themselves are closed by the platform keep-alive cache (after the keep-alive time given by the server, or 5 seconds), not by this setting.
+	 */
+	public ClientOptions setIdleTimeout(int ms) {
+		if( ms < 0 ) throw new IllegalArgumentException("idleTimeout");
+		idleTimeout = ms;
+		return this;
+	}
+
+	/** Return the number of TLS sessions kept for resumption. */
+	public int getTlsSessionCacheSize() { return tlsSessionCacheSize; }
+	/** Set the number of TLS sessions kept for resumption, 0 means no limit. */
+	public ClientOptions setTlsSessionCacheSize(int value) {
+		if( value < 0 ) throw new IllegalArgumentException("tlsSessionCacheSize");
+		tlsSessionCacheSize = value;
+		return this;
+	}
+
+	/** Return the Executor given by setExecutor(), or null if the instance creates its own. */
+	public Executor getExecutor() { return executor; }
+	/** Run all HTTP requests on the given Executor, instead of a thread pool owned by the instance.
+	 * The caller remains responsible for shutting it down.
+	 */
+	public ClientOptions setExecutor(Executor value) {
+		executor = value;
+		return this;
+	}
+
+	/** Return whether each HTTP request runs on its own virtual thread. */
+	public boolean getVirtualThreads() { return virtualThreads; }
+	/** Run each HTTP request on its own virtual thread, so that blocked requests do not wait for a free platform thread.
+	 * Requires Java 21 or later: on older platforms (and Android) a warning is logged, and the thread pool of setMaxThreads() is used instead.
+	 * Ignored if an Executor is given to setExecutor().
+	 * The number of requests actually on the network is still bounded by setMaxConnectionsPerHost().
+	 */
+	public ClientOptions setVirtualThreads(boolean value) {
+		virtualThreads = value;
+		return this;
+	}
+
+	/** Return the number of threads in the instance's own thread pool. */
+	public int getMaxThreads() { return maxThreads; }
+	/** Set the number of threads in the instance's own thread pool, which limits how many requests can be in flight at once.
+	 * Idle threads are released after one second. Ignored if setExecutor() or setVirtualThreads() is used.
+	 */
+	public ClientOptions setMaxThreads(int value) {
+		if( value < 1 ) throw new IllegalArgumentException("maxThreads");
+		maxThreads = value;
+		return this;
+	}
+
+	/** Return the maximum number of requests that may wait for a free thread. */
+	public int getMaxQueueSize() { return maxQueueSize; }
+	/** Set the maximum number of requests that may wait for a free thread, 0 means no limit.
+	 * What happens to requests beyond this limit is decided by setOverflowPolicy().
+	 */
+	public ClientOptions setMaxQueueSize(int value) {
+		if( value < 0 ) throw new IllegalArgumentException("maxQueueSize");
+		maxQueueSize = value;
+		return this;
+	}
+
+	/** Return what happens to a new request when the request queue is full. */
+	public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+	/** Set what happens to a new request when the request queue is full.
+	 * Reject (the default) fails the new request at once, DropOldest fails the request that has waited longest instead,
+	 * and Block makes the caller wait for room, up to setQueueTimeout() or the request timeout, whichever is shorter.
+	 * Only the thread of a caller ever waits: the requests that the instance sends by itself (retries, hedges, batches sent by their timer, the next request of an ordered session, the reward journal) are rejected instead.
+	 * A failed select() returns the default option, as with any other error.
+	 */
+	public ClientOptions setOverflowPolicy(OverflowPolicy value) {
+		if( value == null ) throw new IllegalArgumentException("overflowPolicy");
+		overflowPolicy = value;
+		return this;
+	}
+
+	/** Return how long (in milliseconds) the Block overflow policy may wait for room in the queue. */
+	public int getQueueTimeout() { return queueTimeout; }
+	/** Set how long (in milliseconds) the Block overflow policy may wait for room in the queue, 0 means only the request timeout applies. */
+	public ClientOptions setQueueTimeout(int ms) {
+		if( ms < 0 ) throw new IllegalArgumentException("queueTimeout");
+		queueTimeout = ms;
+		return this;
+	}
+
+	/** Return the maximum number of rewards sent together in one request, 1 means rewards are not batched. */
+	public int getRewardBatchSize() { return rewardBatchSize; }
+	/** Return how long (in milliseconds) a reward may wait for others to join its batch. */
+	public int getRewardBatchDelay() { return rewardBatchDelay; }
+	/** Collect calls to reward() for the same session (and the same RequestOptions), and send them together in one request.
+	 * A batch is sent once it holds maxSize rewards, or maxDelay milliseconds after its first reward, whichever comes first.
+	 * Each Callback is still given its own GoalResponse.
+	 * @param maxSize The maximum number of rewards in one request, 1 disables batching (the default).
+	 * @param maxDelay The maximum time (in milliseconds) a reward waits before it is sent.
+	 */
+	public ClientOptions setRewardBatching(int maxSize, int maxDelay) {
+		if( maxSize < 1 ) throw new IllegalArgumentException("maxSize");
+		if( maxDelay < 0 ) throw new IllegalArgumentException("maxDelay");
+		rewardBatchSize = maxSize;
+		rewardBatchDelay = maxDelay;
+		return this;
+	}
+
+	/** Return the maximum number of selections coalesced into one request, 1 means selections are not coalesced. */
+	public int getSelectCoalesceSize() { return selectCoalesceSize; }
+	/** Return how long (in milliseconds) a selection may wait for others to join its request. */
+	public int getSelectCoalesceWindow() { return selectCoalesceWindow; }
+	/** Merge calls to select() for a single agent, made for the same session (and the same RequestOptions) within a short window,
+	 * into one request for all of those agents; each Callback is still given the SelectResponse of its own agent.
+	 * The request is sent once it holds maxSize agents, or window milliseconds after the first select(), whichever comes first.
+	 * Selecting an agent that is already waiting in the window sends the waiting request first.
+	 * @param maxSize The maximum number of agents in one request, 1 disables coalescing (the default).
+	 * @param window The maximum time (in milliseconds) a selection waits before it is sent; this adds to the latency of every select().
+	 */
+	public ClientOptions setSelectCoalescing(int maxSize, int window) {
+		if( maxSize < 1 ) throw new IllegalArgumentException("maxSize");
+		if( window < 0 ) throw new IllegalArgumentException("window");
+		selectCoalesceSize = maxSize;
+		selectCoalesceWindow = window;
+		return this;
+	}
+
+	/** Return the maximum number of selections kept in the selection cache, 0 means there is no cache. */
+	public int getSelectionCacheSize() { return selectionCacheSize; }
+	/** Return how long (in milliseconds) a cached selection may be re-used. */
+	public int getSelectionCacheTTL() { return selectionCacheTTL; }
+	/** Keep recent selections in memory, by session and agent, and answer repeated calls to select() from there.
+	 * Provisional selections, failed selections, and requests that are provisional or confirm a selection, bypass the cache.
+	 * A cached selection that is not among the variations allowed by the request is not used.
+	 * @param maxEntries The maximum number of selections kept, the least recently used are evicted first; 0 disables the cache (the default).
+	 * @param ttl How long (in milliseconds) a selection may be re-used.
+	 */
+	public ClientOptions setSelectionCache(int maxEntries, int ttl) {
+		if( maxEntries < 0 ) throw new IllegalArgumentException("maxEntries");
+		if( ttl < 0 ) throw new IllegalArgumentException("ttl");
+		selectionCacheSize = maxEntries;
+		selectionCacheTTL = ttl;
+		return this;
+	}
+
+	/** Return how long (in milliseconds) after it expires a cached selection may still be served, while it is refreshed. */
+	public int getStaleWhileRevalidate() { return staleWhileRevalidate; }
+	/** Serve a cached selection for up to maxStale milliseconds after it expired, instead of waiting for a request.
+	 * Such a SelectResponse returns true from isStale(), and a fresh selection is requested in the background,
+	 * which replaces the cached one for the next call. Has no effect unless setSelectionCache() is used.
+	 * @param maxStale How long (in milliseconds) an expired selection may be served, 0 disables this (the default).
+	 */
+	public ClientOptions setStaleWhileRevalidate(int maxStale) {
+		if( maxStale < 0 ) throw new IllegalArgumentException("maxStale");
+		staleWhileRevalidate = maxStale;
+		return this;
+	}
+
+	/** Return the Logger that receives the log messages of the instance. */
+	public Logger getLogger() { return logger; }
+	/** Send the log messages of the instance to a Logger. The default is a ConsoleLogger at level Info,
+	 * which prints warnings and errors, but not the body of every request and response (those are logged at level Debug).
+	 * To keep logging I/O off the request threads, wrap the Logger in an AsyncLogger.
+	 */
+	public ClientOptions setLogger(Logger value) {
+		if( value == null ) throw new IllegalArgumentException("logger");
+		logger = value;
+		return this;
+	}
+
+	/** Return the minimum size (in bytes) of a request body that is compressed with gzip, 0 means requests are never compressed. */
+	public int getGzipRequests() { return gzipRequests; }
+	/** Compress request bodies of at least minSize bytes with gzip (sent with "Content-Encoding: gzip").
+	 * Small bodies are not worth the CPU, and a body that would not get smaller is sent as it is.
+	 * @param minSize The minimum size (in bytes) of a body to compress, 0 disables this (the default).
+	 */
+	public ClientOptions setGzipRequests(int minSize) {
+		if( minSize < 0 ) throw new IllegalArgumentException("minSize");
+		gzipRequests = minSize;
+		return this;
+	}
+
+	/** Return whether responses may be compressed with gzip. */
+	public boolean getGzipResponses() { return gzipResponses; }
+	/** Ask for responses compressed with gzip ("Accept-Encoding: gzip"), which are decompressed as they are parsed. On by default. */
+	public ClientOptions setGzipResponses(boolean value) {
+		gzipResponses = value;
+		return this;
+	}
+
+	/** Return the RetryPolicy of failed requests, or null if they are not retried. */
+	public RetryPolicy getRetryPolicy() { return retryPolicy; }
+	/** Retry requests that failed with a transient error (eg a dropped connection, or HTTP 503), according to a RetryPolicy.
+	 * All the attempts of one request share its timeout (RequestOptions.setTimeout()). The default is null: no retries.
+	 */
+	public ClientOptions setRetryPolicy(RetryPolicy value) {
+		retryPolicy = value;
+		return this;
+	}
+
+	/** Return the HedgePolicy of selections, or null if they are not hedged. */
+	public HedgePolicy getHedgePolicy() { return hedgePolicy; }
+	/** Send a second request for selections that are slower than usual, according to a HedgePolicy, to cut the tail latency of select().
+	 * The default is null: no hedging.
+	 */
+	public ClientOptions setHedgePolicy(HedgePolicy value) {
+		hedgePolicy = value;
+		return this;
+	}
+
+	/** Return the CircuitBreaker of the instance, or null if it has none. */
+	public CircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+	/** Stop sending requests while the API is failing, according to a CircuitBreaker: selections get their default option at once,
+	 * as if the request was offline, instead of waiting for a timeout. The default is null: every request is sent.
+	 */
+	public ClientOptions setCircuitBreaker(CircuitBreaker value) {
+		circuitBreaker = value;
+		return this;
+	}
+
+	/** Return the RewardJournal of the instance, or null if it has none. */
+	public RewardJournal getRewardJournal() { return rewardJournal; }
+	/** Keep every reward in a RewardJournal on disk until the API accepts it; failed rewards (and those left by a previous process) are sent again in the background.
+	 * The journal still belongs to the caller, who should close() it after Conductrics.shutdown(). The default is null: a failed reward is lost.
+	 */
+	public ClientOptions setRewardJournal(RewardJournal value) {
+		rewardJournal = value;
+		return this;
+	}
+
+	/** Return true if the requests of each session are sent one at a time, in order. */
+	public boolean getOrderedSessions() { return orderedSessions; }
+	/** Send the requests of each session one at a time, in the order they were made: each waits until the previous one was answered,
+	 * eg a confirming selection after its provisional selection, or a reward after its selection. Requests of different sessions still run in parallel.
+	 * Reward batching and select coalescing are not used then, since they would send some requests after later ones. The default is false.
+	 */
+	public ClientOptions setOrderedSessions(boolean value) {
+		orderedSessions = value;
+		return this;
+	}
+
+	/** Return true if requests are sent with java.net.http.HttpClient. */
+	public boolean getHttpClient() { return httpClient; }
+	/** Send requests with java.net.http.HttpClient (requires Java 11, so not on Android), instead of HttpURLConnection.
+	 * Requests are then sent asynchronously, many of them sharing each HTTP/2 connection, and no thread waits for a response:
+	 * the number of requests in flight is not limited by setMaxThreads(), nor queued, and setMaxConnectionsPerHost() does not apply.
+	 * On Java 11 to 15, a request that is cancelled or times out before its response starts is answered at once, but the HttpClient
+	 * only aborts the exchange itself from Java 16 on.
+	 * The default is false. It does not apply if setTransport() is used.
+	 */
+	public ClientOptions setHttpClient(boolean value) {
+		httpClient = value;
+		return this;
+	}
+
+	/** Return the Transport that sends requests, or null for the default one. */
+	public Transport getTransport() { return transport; }
+	/** Send requests with a Transport of your own, instead of HttpURLConnection; see Transport.
+	 * Compression, retries and metrics are applied around it, so it only has to send each request once, as is.
+	 * The request queue and its limits (setMaxThreads(), setMaxQueueSize(), setMaxConnectionsPerHost()) are left to the Transport.
+	 * The Transport still belongs to the caller, Conductrics.shutdown() does not stop it. The default is null.
+	 */
+	public ClientOptions setTransport(Transport value) {
+		transport = value;
+		return this;
+	}
+}
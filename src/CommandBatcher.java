@@ -0,0 +1,156 @@
+package com.conductrics;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** A CommandBatcher collects commands that can share one request (same session, same options),
+ * and sends them together in one exec() once the batch is full, or its delay has passed.
+ * Every command in a batch is answered from the same ExecResponse.
+ */
+class CommandBatcher {
+
+	/** Sends one batch of commands, using the RequestOptions of the first command in the batch.
+	 * background is true when the batch is sent by a thread of the instance (a timer, or the answer of another request), which must never wait for room in a full request queue.
+	 */
+	static interface Sender {
+		public Transport.Cancellable send(RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback, boolean background);
+	}
+
+	private static class Item implements Transport.Cancellable {
+		final String code;
+		final JSONObject command;
+		final Callback<ExecResponse> callback;
+		Batch batch;
+		Item(String code, JSONObject command, Callback<ExecResponse> callback) {
+			this.code = code;
+			this.command = command;
+			this.callback = callback;
+		}
+		public void cancel() { batch.owner.remove(this); }
+	}
+
+	private static class Batch {
+		final CommandBatcher owner;
+		final String key;
+		final RequestOptions opts;
+		final List<Item> items = new ArrayList<>();
+		final Set<String> codes = new HashSet<>();
+		ScheduledFuture<?> timer;
+		Batch(CommandBatcher owner, String key, RequestOptions opts) {
+			this.owner = owner;
+			this.key = key;
+			this.opts = opts;
+		}
+	}
+
+	private final int maxSize;
+	private final int maxDelay;
+	private final ScheduledExecutorService scheduler;
+	private final Sender sender;
+	private final Map<String, Batch> pending = new HashMap<>(); // guarded by this
+
+	CommandBatcher(int maxSize, int maxDelay, ScheduledExecutorService scheduler, Sender sender) {
+		this.maxSize = maxSize;
+		this.maxDelay = maxDelay;
+		this.scheduler = scheduler;
+		this.sender = sender;
+	}
+
+	/** Add one command to the batch for its session and options.
+	 * @param opts The RequestOptions of the caller.
+	 * @param code The agent or goal code of the command; a code already in the pending batch sends that batch first, so each code is answered separately.
+	 * @param command The command to send.
+	 * @param callback Will be given the ExecResponse of the whole batch.
+	 * @param background True if nobody waits for the answer, so that a batch filled by this command must not wait for room in the request queue.
+	 */
+	Transport.Cancellable add(RequestOptions opts, String code, JSONObject command, Callback<ExecResponse> callback, boolean background) {
+		String key = opts.getSession() + "\u0000" + opts.getSignature();
+		Item item = new Item(code, command, callback);
+		Batch full = null, previous = null;
+		synchronized( this ) {
+			Batch batch = pending.get(key);
+			if( batch != null && batch.codes.contains(code) ) {
+				previous = take(batch);
+				batch = null;
+			}
+			if( batch == null ) {
+				batch = new Batch(this, key, opts);
+				pending.put(key, batch);
+				final Batch scheduled = batch;
+				batch.timer = scheduler.schedule(new Runnable() {
+					public void run() { expire(scheduled); }
+				}, maxDelay, TimeUnit.MILLISECONDS);
+			}
+			item.batch = batch;
+			batch.items.add(item);
+			batch.codes.add(code);
+			if( batch.items.size() >= maxSize ) {
+				full = take(batch);
+			}
+		}
+		if( previous != null ) send(previous, background);
+		if( full != null ) send(full, background);
+		return item;
+	}
+
+	/** Send every pending batch now. */
+	void flush() {
+		List<Batch> batches;
+		synchronized( this ) {
+			batches = new ArrayList<>(pending.values());
+			for( Batch batch : batches ) take(batch);
+		}
+		for( Batch batch : batches ) send(batch, false);
+	}
+
+	// must hold the lock
+	private Batch take(Batch batch) {
+		pending.remove(batch.key);
+		if( batch.timer != null ) batch.timer.cancel(false);
+		return batch;
+	}
+
+	private void expire(Batch batch) {
+		synchronized( this ) {
+			if( pending.get(batch.key) != batch ) return; // already sent
+			take(batch);
+		}
+		send(batch, true); // on the timer thread
+	}
+
+	// a command that is cancelled before its batch is sent is simply left out
+	private void remove(Item item) {
+		boolean removed;
+		synchronized( this ) {
+			removed = pending.get(item.batch.key) == item.batch && item.batch.items.remove(item);
+			if( removed ) {
+				item.batch.codes.remove(item.code);
+				if( item.batch.items.isEmpty() ) take(item.batch);
+			}
+		}
+		if( removed ) item.callback.onValue( new ExecResponse( new CancellationException("request cancelled") ));
+	}
+
+	private void send(final Batch batch, boolean background) {
+		if( batch.items.isEmpty() ) return;
+		JSONArray commands = new JSONArray();
+		for( Item item : batch.items ) commands.put(item.command);
+		sender.send(batch.opts, commands, new Callback<ExecResponse>() {
+			public void onValue(ExecResponse response) {
+				for( Item item : batch.items ) item.callback.onValue(response);
+			}
+		}, background);
+	}
+}
@@ -11,162 +11,263 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Iterator;
 
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
-import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.io.IOException;
-import java.io.DataOutputStream;
-import java.io.OutputStream;
 import java.io.InputStream;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.conductrics.Policy;
 import com.conductrics.Status;
 import com.conductrics.RequestOptions;
 import com.conductrics.Callback;
+import com.conductrics.Transport.Cancellable;
 
 /** Provides a wrapper around the Conductrics HTTP API. */
 public class Conductrics {
 
-	/** CallbackWithError<T> is used internally, to propagate possible errors as well as values.
-	 * Errors encountered this way are attached to result objects, eg SelectResponse, as getError()
-	 */
-	private static interface CallbackWithError<T> extends Callback<T> {
-		public void onError(Exception err);
-	}
+	static final Cancellable NOT_CANCELLABLE = new Cancellable() {
+		public void cancel() { }
+	};
 
-	private static void log(String line) {
-		System.out.print("Conductrics: ");
-		System.out.println(line);
+	/** A CompletableFuture that aborts its underlying request when cancelled. */
+	private static class RequestFuture<T> extends CompletableFuture<T> {
+		private volatile Cancellable request;
+		void setRequest(Cancellable r) {
+			request = r;
+			if( isCancelled() ) r.cancel();
+		}
+		@Override public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Cancellable r = request;
+			if( cancelled && r != null ) r.cancel();
+			return cancelled;
+		}
 	}
-	private static void writeAll(String data, OutputStream out) throws IOException {
-		DataOutputStream o = new DataOutputStream( out );
-		o.writeBytes( data );
-		o.flush();
-		o.close();
+
+	static void log(Logger logger, LogLevel level, String line) {
+		if( logger.isEnabled(level) ) logger.log(level, line);
 	}
-	private static String readAll(InputStream s) {
-		if( s == null ) return "";
-		java.util.Scanner sc = new java.util.Scanner(s).useDelimiter("\\A");
-		return sc.hasNext() ? sc.next() : "";
+	// the API key must never end up in a log
+	static String redact(String url) {
+		if( url == null ) return null;
+		int start = url.indexOf("apikey=");
+		if( start < 0 ) return url;
+		start += "apikey=".length();
+		int end = url.indexOf('&', start);
+		return url.substring(0, start) + "***" + (end < 0 ? "" : url.substring(end));
 	}
+	private static final Map<String, String> JSON_HEADERS = Collections.singletonMap("content-type", "application/json");
 
 	/** Construct an API instance using an API URL and an API Key
 	 * @param apiUrl an absolute URL, taken from the Conductrics Console > Developers > API Keys section.
 	 * @param apiKey a Conductrics API Key, from the Console.
 	 */
 	public Conductrics(String apiUrl, String apiKey) {
+		this(apiUrl, apiKey, new ClientOptions());
+	}
+	/** Construct an API instance using an API URL, an API Key, and client-wide settings.
+	 * @param apiUrl an absolute URL, taken from the Conductrics Console > Developers > API Keys section.
+	 * @param apiKey a Conductrics API Key, from the Console.
+	 * @param options A ClientOptions object that configures connections, for all requests made by this instance.
+	 */
+	public Conductrics(String apiUrl, String apiKey, ClientOptions options) {
 		this.apiUrl = apiUrl;
 		this.apiKey = apiKey;
+		if( options == null ) options = new ClientOptions();
+		this.logger = options.getLogger();
+		this.breaker = options.getCircuitBreaker();
+		if( breaker != null ) {
+			metrics.circuitBreaker = breaker;
+			breaker.addListener(new Callback<CircuitBreaker.State>() {
+				public void onValue(CircuitBreaker.State state) {
+					metrics.circuitChanged(state);
+					log(logger, state == CircuitBreaker.State.Closed ? LogLevel.Info : LogLevel.Warn, "Circuit breaker " + state);
+				}
+			});
+		}
+		// timers for delayed work, eg sending a batch; the thread is released when idle
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "conductrics-timer");
+			}
+		});
+		timer.setKeepAliveTime(1, TimeUnit.SECONDS);
+		timer.allowCoreThreadTimeOut(true);
+		timer.setRemoveOnCancelPolicy(true);
+		this.scheduler = timer;
+		Transport custom = options.getTransport();
+		if( custom == null && options.getHttpClient() ) custom = new HttpClientTransport(options.getExecutor());
+		if( custom == null ) {
+			this.pool = new ConnectionPool(options.getMaxConnectionsPerHost(), options.getIdleTimeout(), options.getTlsSessionCacheSize());
+			this.http = new UrlConnectionTransport(options, metrics, pool);
+			custom = http;
+		}
+		this.transport = new ManagedTransport(custom, options, metrics, scheduler);
+		if( options.getExecutor() != null ) {
+			this.callbacks = options.getExecutor();
+		} else {
+			this.callbacks = http != null ? http.executor() : ForkJoinPool.commonPool();
+		}
+		CommandBatcher.Sender sender = new CommandBatcher.Sender() {
+			public Cancellable send(RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback, boolean background) {
+				return execute( opts, commands, callback, background );
+			}
+		};
+		this.journal = options.getRewardJournal();
+		if( journal != null ) journal.start(scheduler, sender, logger);
+		boolean ordered = options.getOrderedSessions();
+		if( ordered ) this.lanes = new SessionLanes();
+		if( options.getRewardBatchSize() > 1 && ! ordered ) {
+			this.rewardBatcher = new CommandBatcher(options.getRewardBatchSize(), options.getRewardBatchDelay(), scheduler, sender);
+		}
+		if( options.getSelectionCacheSize() > 0 ) {
+			this.cache = new SelectionCache(options.getSelectionCacheSize(), options.getSelectionCacheTTL(), options.getStaleWhileRevalidate());
+		}
+		this.selectSender = sender;
+		if( options.getHedgePolicy() != null ) {
+			this.selectSender = new Hedger(options.getHedgePolicy(), scheduler, metrics, sender);
+		}
+		this.sender = sender;
+		if( lanes != null ) {
+			this.sender = lanes.through(sender);
+			this.selectSender = lanes.through(selectSender);
+		}
+		if( options.getSelectCoalesceSize() > 1 && ! ordered ) {
+			this.selectCoalescer = new CommandBatcher(options.getSelectCoalesceSize(), options.getSelectCoalesceWindow(), scheduler, selectSender);
+		}
 	}
 	private String apiUrl;
 	private String apiKey;
+	private Logger logger;
+	private Metrics metrics = new Metrics();
+	private ConnectionPool pool; // null unless the default transport is used
+	private ManagedTransport transport; // sends every request, through the transport that was chosen
+	private UrlConnectionTransport http; // null unless the default transport is used
+	private ScheduledExecutorService scheduler;
+	private Executor callbacks; // answers the calls whose deadline passed
+	private CommandBatcher rewardBatcher; // null unless reward batching is enabled
+	private CommandBatcher selectCoalescer; // null unless select coalescing is enabled
+	private CommandBatcher.Sender sender; // sends rewards and exec(), in the lane of their session if sessions are ordered
+	private CommandBatcher.Sender selectSender; // sends selections, hedged if a HedgePolicy is set
+	private SessionLanes lanes; // null unless sessions are ordered
+	private SelectionCache cache; // null unless the selection cache is enabled
+	private CircuitBreaker breaker; // null unless a circuit breaker is used
+	private RewardJournal journal; // null unless rewards are journaled
 
+	/** Return the pool of connections used by this instance, to inspect how often connections are reused; null if requests are sent by another Transport, or with setHttpClient(). */
+	public ConnectionPool getConnectionPool() { return pool; }
 
-	private static class HTTP {
-		// use a small thread-pool to handle all our HTTP Requests asynchronously
-		private static ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 10, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	/** Return the latency histograms, error counters and gauges of this instance. */
+	public Metrics getMetrics() { return metrics; }
 
-		private static class RequestRunner implements Runnable {
-			private String method;
-			private String url;
-			private String body;
-			private int timeout;
-			private Map<String, String> headers;
-			private CallbackWithError<String> callback;
-			public RequestRunner(String method, String url, String body, int timeout, Map<String, String> headers, CallbackWithError<String> callback) {
-				this.method = method.toUpperCase();
-				this.url = url;
-				this.body = body;
-				this.timeout = timeout;
-				this.headers = headers;
-				this.callback = callback;
-			}
-
-			@Override
-			public void run() {
-				log(method + ": " + body + " " + url);
-				URL u;
-				HttpURLConnection conn;
-				if( url == null ) {
-					log("HTTP RequestRunner url cannot be null, aborting request");
-					callback.onError( new Exception("invalid cannot be null") );
-					return;
-				}
+	/** Return the cache of recent selections, or null if ClientOptions.setSelectionCache() was not used. */
+	public SelectionCache getSelectionCache() { return cache; }
 
-				if( method == "POST" && body == null ) body = "";
+	/** Stop accepting new requests, and release the threads owned by this instance.
+	 * An Executor given to ClientOptions.setExecutor() is not shut down, it still belongs to the caller.
+	 */
+	public void shutdown() {
+		flush();
+		if( journal != null ) journal.force();
+		scheduler.shutdown();
+		transport.shutdown();
+		if( http != null ) http.shutdown();
+	}
 
-				// Try to parse the given URL safely.
-				try {
-					u = new URL(url);
-				} catch( MalformedURLException e ) {
-					log("MalformedURLException(url="+url+"): "+e.toString());
-					callback.onError( e );
-					return;
-				}
+	/** Send any batched rewards (and coalesced selections) now, instead of waiting for their batch to fill up. */
+	public void flush() {
+		if( selectCoalescer != null ) selectCoalescer.flush();
+		if( rewardBatcher != null ) rewardBatcher.flush();
+	}
 
-				try {
-					conn = (HttpURLConnection)u.openConnection();
-					conn.setRequestMethod(method);
-					if( headers != null ) {
-						for( String key : headers.keySet() ) {
-							conn.setRequestProperty(key, headers.get(key));
-						}
-					}
-					if( timeout > 0 ) {
-						conn.setConnectTimeout(timeout); // we shouldn't have to wait long just to get a socket
-						conn.setReadTimeout(timeout); // we may have to wait for the server response though, once connected
-					}
-					conn.setUseCaches( false );
-					conn.setDoInput( true );
-					if( body != null ) {
-						conn.setDoOutput( true );
-					}
-				} catch( IOException e ) {
-					log("IOException("+method+" "+url+"): "+e.toString());
-					callback.onError( e );
-					return;
-				}
+	/** Return the number of requests waiting for a free thread. */
+	public int getQueueDepth() { return metrics.queued.get(); }
+	/** Return the number of requests that were rejected or dropped, because the request queue was full. */
+	public long getShedCount() { return http == null ? 0 : http.shed.get(); }
+	/** Return the number of requests that were dropped, because their timeout passed while waiting in the queue. */
+	public long getExpiredCount() { return http == null ? 0 : http.expired.get(); }
 
-				try {
-					if( body != null ) writeAll( body, conn.getOutputStream() );
-				} catch( SocketTimeoutException e ) {
-					log("SocketTimeoutException("+method+" "+url+"): "+e.toString());
-					callback.onError( e );
-				} catch( IOException e ) {
-					log("IOException("+method+" "+url+"): "+e.toString());
-					callback.onError( e );
-					return;
-				}
 
-				try {
-					callback.onValue( readAll( conn.getInputStream() ));
-				} catch( SocketTimeoutException e ) {
-					log("SocketTimeoutException("+method+" "+url+"): "+e.toString());
-					callback.onError( e );
-				} catch( IOException e ) {
-					log("IOException("+method+" "+url+"): "+e.toString());
-					callback.onError( e );
-					return;
-				}
+	/** A Deadline answers the callback of one call exactly once: with its response, or with a SocketTimeoutException
+	 * as soon as opts.getTimeout() has passed since the call was made; the request is then cancelled, and a late response ignored.
+	 * The deadline covers everything: waiting for a batch, a thread or a connection, retries, hedges, and parsing the response.
+	 * A timeout is answered on a thread of the executor that runs the requests (or the common ForkJoinPool, if the Transport has none).
+	 */
+	private class Deadline implements Callback<ExecResponse>, Cancellable, Runnable {
+		private final AtomicBoolean done = new AtomicBoolean();
+		private final int timeout;
+		private final Callback<ExecResponse> callback;
+		private volatile Cancellable request;
+		private volatile boolean expired = false;
+		private ScheduledFuture<?> timer;
+		Deadline(int timeout, long start, Callback<ExecResponse> callback) {
+			this.timeout = timeout;
+			this.callback = callback;
+			long delay = start + TimeUnit.MILLISECONDS.toNanos(timeout) - System.nanoTime();
+			try {
+				timer = scheduler.schedule(this, Math.max(0, delay), TimeUnit.NANOSECONDS);
+			} catch( RejectedExecutionException e ) {
+				// shut down, the request has its own timeouts
 			}
 		}
-
-		public static void request(String method, String url, String body, int timeout, Map<String, String> headers, CallbackWithError<String> callback) {
-			if( executor.isShutdown() || executor.isTerminated() || executor.isTerminating() ) {
-				callback.onError( new Exception("threadpool shutdown") );
-			} else {
-				executor.execute( new RequestRunner(method, url, body, timeout, headers, callback));
+		Cancellable send(Cancellable request) {
+			this.request = request;
+			if( expired ) request.cancel(); // the deadline passed while it was being sent, eg blocked on a full queue
+			return this;
+		}
+		public void onValue(ExecResponse response) {
+			if( ! done.compareAndSet(false, true) ) return; // too late
+			if( timer != null ) timer.cancel(false);
+			if( callback != null ) callback.onValue(response);
+		}
+		// the deadline has passed: the request (if it was sent) tells the circuit breaker, when it is cancelled
+		public void run() {
+			if( ! done.compareAndSet(false, true) ) return;
+			expired = true;
+			Cancellable r = request;
+			if( r != null ) r.cancel();
+			final SocketTimeoutException e = new SocketTimeoutException("deadline of " + timeout + "ms expired");
+			metrics.error(e);
+			if( callback == null ) return;
+			// not on the timer thread, which all the requests share: the callback may be slow
+			Runnable answer = new Runnable() {
+				public void run() { callback.onValue(new ExecResponse(e)); }
+			};
+			try {
+				callbacks.execute(answer);
+			} catch( RejectedExecutionException x ) {
+				answer.run(); // shut down
 			}
 		}
+		public void cancel() {
+			Cancellable r = request;
+			if( r != null ) r.cancel();
+		}
+	}
+	// wrap the handler of a call made at start in a Deadline, unless it has no timeout
+	private Callback<ExecResponse> deadline(RequestOptions opts, long start, Callback<ExecResponse> handler) {
+		if( opts.getTimeout() <= 0 ) return handler;
+		opts.deadline = start + TimeUnit.MILLISECONDS.toNanos(opts.getTimeout());
+		return new Deadline(opts.getTimeout(), start, handler);
+	}
+	private static Cancellable sent(Callback<ExecResponse> handler, Cancellable request) {
+		return handler instanceof Deadline ? ((Deadline)handler).send(request) : request;
 	}
 
 	/** Executes any arbitrary API commands, any commands documented in the Runtime API Reference are supported.
@@ -176,61 +277,88 @@ public class Conductrics {
 	 * @param callback A Callback that will be given an ExecResponse; callback.onValue(ExecResponse)
 	 */
 	public void exec( RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback) {
+		execWithDeadline( opts, commands, callback );
+	}
+	private Cancellable execWithDeadline( RequestOptions options, JSONArray commands, Callback<ExecResponse> callback) {
+		RequestOptions opts = snapshot( options );
+		if( opts == null || opts.getOffline() ) return execute( opts, commands, callback, false );
+		Callback<ExecResponse> handler = deadline( opts, System.nanoTime(), callback );
+		return sent( handler, sender.send( opts, commands, handler, false ) );
+	}
+	// each call works on a copy of its options, taken when it starts, so that the caller may change (or share) them meanwhile
+	private static RequestOptions snapshot( RequestOptions opts ) {
+		return opts == null ? null : opts.snapshot();
+	}
+	// background: sent by a thread of the instance, which must not wait for room in a full request queue
+	private Cancellable execute( RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback, boolean background) {
 		if( opts == null || opts.getOffline() ) {
 			if( callback != null ) callback.onValue( new ExecResponse( new Exception("offline")));
-			return;
+			return NOT_CANCELLABLE;
+		}
+		if( breaker != null && ! breaker.allow() ) {
+			// like an offline request, without waiting for the API, nor serializing the request
+			if( callback != null ) callback.onValue( new ExecResponse( new CircuitOpenException() ));
+			return NOT_CANCELLABLE;
 		}
 		try {
-			String body = "{ \"commands\": " + commands.toString();
-			JSONObject inputs = new JSONObject(opts.getInputs());
-			if( inputs.length() > 0 ) {
-				body += ", \"inputs\": " + inputs.toString();
-			}
-			body += " }";
-
-			HashMap<String, String> headers = new HashMap<String, String>();
-			headers.put("content-type", "application/json");
-			headers.put("content-length", String.format("%d", body.length()));
-			String url = apiUrl + "?apikey=" + apiKey;
-			try {
-				Map<String, String> params = opts.getParams();
-				List<String> traits = opts.getTraits();
-				if( traits.size() > 0 ) {
-					params.put("traits", String.join(",", traits));
-				}
-				for( String key : params.keySet() ) {
-					url += "&"+key+"="+URLEncoder.encode(params.get(key), "utf-8");
-				}
-			} catch( java.io.UnsupportedEncodingException e) {
-				log("Failed to produce a valid API url: " + e.getLocalizedMessage());
-				if( callback != null ) callback.onValue( new ExecResponse( e ));
-				return;
+			RequestWriter writer = RequestWriter.get();
+			RequestTemplate template = opts.template();
+			byte[] body;
+			String url;
+			if( template != null ) {
+				// serialized once by the template, apart from the session
+				body = writer.body(commands, template.inputs);
+				url = writer.url(apiUrl, apiKey, opts.getSession(), template.query);
+			} else {
+				body = writer.body(commands, opts.getInputs());
+				url = writer.url(apiUrl, apiKey, opts.params(), opts.getTraits());
 			}
-			HTTP.request("POST", url, body, opts.getTimeout(), headers, new CallbackWithError<String>() {
-				public void onValue(String responseBody) {
+			Transport.Listener handler = new Transport.Listener() {
+				public void onResponse(InputStream responseBody, String contentEncoding) {
 					if( responseBody == null ) {
-						if( callback != null ) callback.onValue(new ExecResponse(new Exception("response body is null")));
+						Exception err = new Exception("response body is null");
+						if( breaker != null ) breaker.record(err);
+						if( callback != null ) callback.onValue(new ExecResponse(err));
 						return;
 					}
-					log("POST response: " + responseBody);
-					JSONObject result = new JSONObject(responseBody);
-					if( result.getInt("status") == 200 ) {
-						JSONObject data = result.getJSONObject("data");
-						if( data != null ) {
-							if( callback != null ) callback.onValue(new ExecResponse(data, opts));
-						} else {
-							if( callback != null ) callback.onValue(new ExecResponse(new Exception("no 'data' key in JSON response")));
+					ExecResponse response;
+					try {
+						long t = System.nanoTime();
+						response = ExecResponse.read(responseBody, opts);
+						metrics.parsed(System.nanoTime() - t);
+						if( response.getError() == null && logger.isEnabled(LogLevel.Debug) ) {
+							logger.log(LogLevel.Debug, "POST response: " + response.getJSONObject());
 						}
-					} else {
-						if( callback != null ) callback.onValue(new ExecResponse(new Exception("bad 'status' value in JSON response: " + responseBody)));
+					} catch( IOException err ) {
+						log(logger, LogLevel.Warn, "IOException reading response in exec(): " + err.getLocalizedMessage());
+						metrics.error(err);
+						response = new ExecResponse(err);
+					} catch( JSONException err ) {
+						log(logger, LogLevel.Warn, "JSONException in exec(): " + err.getLocalizedMessage());
+						metrics.error(err);
+						response = new ExecResponse(err);
 					}
+					if( breaker != null ) breaker.record(response.getError());
+					if( callback != null ) callback.onValue(response);
 				}
 				public void onError(Exception err) {
+					if( breaker != null ) {
+						// cancelled because the deadline of the call passed: the API was too slow
+						boolean expired = err instanceof CancellationException && opts.deadline != 0 && System.nanoTime() - opts.deadline >= 0;
+						breaker.record(expired ? new SocketTimeoutException("deadline expired") : err);
+					}
 					if( callback != null ) callback.onValue(new ExecResponse(err));
 				}
-			});
+			};
+			// the deadline of the call, so that the time it already spent in a batch, a session lane or before a hedge counts too
+			long deadline = opts.deadline;
+			if( deadline == 0 && opts.getTimeout() > 0 ) deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(opts.getTimeout()); // nobody waits for it, eg a refresh
+			return transport.send("POST", url, JSON_HEADERS, body, deadline, handler, background);
 		} catch (JSONException err ) {
-			log("JSONException in exec(): " + err.getLocalizedMessage());
+			log(logger, LogLevel.Warn, "JSONException in exec(): " + err.getLocalizedMessage());
+			if( breaker != null ) breaker.release(); // never sent
+			if( callback != null ) callback.onValue( new ExecResponse( err ));
+			return NOT_CANCELLABLE;
 		}
 	}
 
@@ -240,11 +368,32 @@ public class Conductrics {
 	 * @param callback A Callback that will be given a SelectResponse; callback.onValue(SelectResponse)
 	 */
 	public void select(RequestOptions opts, String agentCode, Callback<SelectResponse> callback) {
+		selectOne( opts, agentCode, callback );
+	}
+	private Cancellable selectOne(RequestOptions options, String agentCode, Callback<SelectResponse> callback) {
+		final long start = System.nanoTime();
+		final RequestOptions opts = snapshot( options );
 		if( opts.getOffline() ) {
-			if( callback != null ) callback.onValue( new SelectResponse(agentCode, opts.getDefault(agentCode), "x", new Exception("offline")));
-			return;
+			SelectResponse offline = new SelectResponse(agentCode, opts.getDefault(agentCode), "x", new Exception("offline"));
+			metrics.selected( agentCode, start, offline );
+			if( callback != null ) callback.onValue( offline );
+			return NOT_CANCELLABLE;
+		}
+		final boolean cacheable = cache != null && ! opts.getProvisional() && ! opts.getConfirm();
+		boolean refresh = false;
+		if( cacheable ) {
+			SelectResponse cached = cache.get( opts.getSession(), agentCode, opts.getAllowedVariations(agentCode) );
+			if( cached != null ) {
+				metrics.selected( agentCode, start, cached );
+				if( callback != null ) callback.onValue( cached );
+				// a stale selection is refreshed in the background, for the next caller
+				if( ! cached.isStale() || ! cache.beginRefresh( opts.getSession(), agentCode ) ) return NOT_CANCELLABLE;
+				refresh = true;
+			}
+		} else if( cache != null ) {
+			// a provisional (or confirming) selection replaces whatever we knew about this agent
+			cache.remove( opts.getSession(), agentCode );
 		}
-		JSONArray commands = new JSONArray();
 		JSONObject command = new JSONObject().put("a", agentCode);
 		if( opts.getProvisional() ) {
 			command.put("s", "p");
@@ -255,28 +404,46 @@ public class Conductrics {
 		if( allowed != null ) {
 			command.put("c", new JSONArray(allowed));
 		}
-		commands.put(command);
-		this.exec( opts, commands, new Callback<ExecResponse>() {
+		final boolean refreshing = refresh;
+		final Callback<SelectResponse> reply = refresh ? null : callback; // the caller already has an answer
+		Callback<ExecResponse> selected = new Callback<ExecResponse>() {
 			public void onValue(ExecResponse response) {
-				if( callback == null ) return;
 				String def = opts.getDefault(agentCode);
+				SelectResponse selection;
 				if( response == null ) {
-					callback.onValue( new SelectResponse(agentCode, def, "x", new Exception("null response")) );
+					selection = new SelectResponse(agentCode, def, "x", new Exception("null response"));
 				} else if( response.getError() != null ) {
-					callback.onValue( new SelectResponse(agentCode, def, "x", response.getError()));
+					selection = new SelectResponse(agentCode, def, "x", response.getError());
 				} else {
-					callback.onValue( response.getSelection( agentCode, def ));
+					selection = response.getSelection( agentCode, def );
+					if( cacheable ) cache.put( opts.getSession(), agentCode, selection );
 				}
+				if( refreshing ) {
+					cache.endRefresh( opts.getSession(), agentCode );
+				} else {
+					metrics.selected( agentCode, start, selection );
+				}
+				if( reply != null ) reply.onValue( selection );
 			}
-		});
+		};
+		Callback<ExecResponse> handler = refresh ? selected : deadline( opts, start, selected ); // nobody waits for a refresh
+		Cancellable request;
+		if( selectCoalescer != null ) {
+			request = selectCoalescer.add( opts, agentCode, command, handler, refresh );
+		} else {
+			request = selectSender.send( opts, new JSONArray().put(command), handler, refresh ); // the caller of a refresh has its answer already, it must not wait
+		}
+		return refresh ? NOT_CANCELLABLE : sent( handler, request );
 	}
 
 	/** Request multiple selections at the same time. Can be used to interact with an MVT agent.
-	 * @param opts A RequestOptions object that contains the configuration for this request.
+	 * @param options A RequestOptions object that contains the configuration for this request.
 	 * @param agentCodes A list of agent codes.
 	 * @param callback A Callback that will be given a list of SelectResponse objects.
 	 */
-	public void select(RequestOptions opts, List<String> agentCodes, Callback<Map<String, SelectResponse>> callback) {
+	public void select(RequestOptions options, List<String> agentCodes, Callback<Map<String, SelectResponse>> callback) {
+		final long start = System.nanoTime();
+		final RequestOptions opts = snapshot( options );
 		Map<String, SelectResponse> result = new HashMap<>();
 		JSONArray commands = new JSONArray();
 		for( String agent : agentCodes ) {
@@ -297,18 +464,21 @@ public class Conductrics {
 			}
 		}
 		if( opts.getOffline() ) {
+			for( String agent : agentCodes ) metrics.selected( agent, start, result.get(agent) );
 			if( callback != null ) callback.onValue( result );
 		} else {
-			this.exec( opts, commands, new Callback<ExecResponse>() {
+			Callback<ExecResponse> handler = deadline( opts, start, new Callback<ExecResponse>() {
 				public void onValue(ExecResponse response) {
 					for( String agent : agentCodes ) {
 						if( ! result.containsKey(agent) ) {
 							result.put(agent, response.getSelection(agent, opts.getDefault(agent)));
 						}
+						metrics.selected( agent, start, result.get(agent) );
 					}
 					if( callback != null ) callback.onValue( result );
 				}
 			});
+			sent( handler, selectSender.send( opts, commands, handler, false ) );
 		}
 	}
 
@@ -340,13 +510,29 @@ public class Conductrics {
 	 * @param callback A Callback that will be given a GoalResponse; callback.onValue(GoalResponse)
 	 */
 	public void reward(RequestOptions opts, String goalCode, Double value, Callback<GoalResponse> callback) {
+		rewardOne( opts, goalCode, value, callback );
+	}
+	private Cancellable rewardOne(RequestOptions options, String goalCode, Double value, Callback<GoalResponse> callback) {
+		final long start = System.nanoTime();
+		final RequestOptions opts = snapshot( options );
 		if( opts.getOffline() ) {
+			metrics.rewarded( goalCode, start );
 			if( callback != null ) callback.onValue( new GoalResponse(goalCode, new Exception("offline")));
-			return;
+			return NOT_CANCELLABLE;
 		}
-		JSONArray commands = new JSONArray().put(new JSONObject().put("g", goalCode).put("v", value));
-		this.exec( opts, commands, new Callback<ExecResponse>() {
+		JSONObject command = new JSONObject().put("g", goalCode).put("v", value);
+		final long entry = journal == null ? -1 : journal.append( opts.getSession(), goalCode, value );
+		Callback<ExecResponse> handler = deadline( opts, start, new Callback<ExecResponse>() {
 			public void onValue(ExecResponse response) {
+				metrics.rewarded( goalCode, start );
+				if( entry >= 0 ) {
+					// a failed reward stays in the journal, to be sent again
+					if( response != null && response.getError() == null ) {
+						journal.ack( entry );
+					} else {
+						journal.release( entry, response == null ? null : response.getError() );
+					}
+				}
 				if( callback == null ) return;
 				if( response == null ) {
 					callback.onValue( new GoalResponse(goalCode, new Exception("response is null")) );
@@ -357,6 +543,55 @@ public class Conductrics {
 				}
 			}
 		});
+		if( rewardBatcher != null ) {
+			return sent( handler, rewardBatcher.add( opts, goalCode, command, handler, false ) );
+		}
+		return sent( handler, sender.send( opts, new JSONArray().put(command), handler, false ) );
+	}
+
+	/** Executes any arbitrary API commands, like exec(), but returns the result as a CompletableFuture.
+	 * Cancelling the future aborts the request, whether it is still queued or already in flight.
+	 * @param opts A RequestOptions object that contains the configuration for this request.
+	 * @param commands A JSONArray, structrued according to the Runtime API Reference.
+	 */
+	public CompletableFuture<ExecResponse> execAsync(RequestOptions opts, JSONArray commands) {
+		RequestFuture<ExecResponse> future = new RequestFuture<>();
+		future.setRequest( execWithDeadline( opts, commands, new Callback<ExecResponse>() {
+			public void onValue(ExecResponse response) { future.complete(response); }
+		}));
+		return future;
+	}
+
+	/** Request a selection from a specified agent, like select(), but returns the result as a CompletableFuture.
+	 * Cancelling the future aborts the request, whether it is still queued or already in flight.
+	 * @param opts A RequestOptions object that contains the configuration for this request.
+	 * @param agentCode A String that specifies which agent to use.
+	 */
+	public CompletableFuture<SelectResponse> selectAsync(RequestOptions opts, String agentCode) {
+		RequestFuture<SelectResponse> future = new RequestFuture<>();
+		future.setRequest( selectOne( opts, agentCode, new Callback<SelectResponse>() {
+			public void onValue(SelectResponse response) { future.complete(response); }
+		}));
+		return future;
+	}
+
+	/** Notify Conductrics that some Reward value should be registered, like reward(), but returns the result as a CompletableFuture.
+	 * @param opts A RequestOptions object that contains the configuration for this request.
+	 * @param goalCode A String that specifies which goal should get the value.
+	 */
+	public CompletableFuture<GoalResponse> rewardAsync(RequestOptions opts, String goalCode) { return rewardAsync( opts, goalCode, 1.0 ); }
+	/** Notify Conductrics that some Reward value should be registered, like reward(), but returns the result as a CompletableFuture.
+	 * Cancelling the future aborts the request, whether it is still queued or already in flight.
+	 * @param opts A RequestOptions object that contains the configuration for this request.
+	 * @param goalCode A String that specifies which goal should get the value.
+	 * @param value A Double that indicate how much value to register for the goal; if not given, defaults to 1.0
+	 */
+	public CompletableFuture<GoalResponse> rewardAsync(RequestOptions opts, String goalCode, Double value) {
+		RequestFuture<GoalResponse> future = new RequestFuture<>();
+		future.setRequest( rewardOne( opts, goalCode, value, new Callback<GoalResponse>() {
+			public void onValue(GoalResponse response) { future.complete(response); }
+		}));
+		return future;
 	}
 
 }
@@ -0,0 +1,165 @@
+package com.conductrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/** A ConnectionPool bounds and tracks the persistent HTTP connections used by one Conductrics instance.
+ * Idle sockets are kept open (at most http.maxConnections per host) and closed by the platform keep-alive cache, which only reuses them when every response is fully read and closed;
+ * the pool makes sure that happens, limits how many connections may be open to each host at once,
+ * and shares one TLS context so that new connections resume an existing TLS session instead of a full handshake.
+ */
+public class ConnectionPool {
+	private final int maxPerHost;
+	private final int idleTimeout;
+	private final SSLSocketFactory sslFactory;
+	private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	// set by the SSLSocketFactory when the current thread had to open a new socket
+	private final ThreadLocal<boolean[]> opened = new ThreadLocal<boolean[]>() {
+		@Override protected boolean[] initialValue() { return new boolean[1]; }
+	};
+
+	// Hosts are never removed: a Host holds no socket, and removing one while a request looks it up would let a second Semaphore exceed maxPerHost
+	static class Host {
+		final Semaphore permits;
+		Host(int max) { permits = new Semaphore(max, true); }
+	}
+
+	ConnectionPool(int maxPerHost, int idleTimeout, int tlsSessionCacheSize) {
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		SSLSocketFactory factory = null;
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			SSLSessionContext sessions = context.getClientSessionContext();
+			if( sessions != null ) {
+				sessions.setSessionCacheSize(tlsSessionCacheSize);
+				sessions.setSessionTimeout(Math.max(1, idleTimeout / 1000));
+			}
+			factory = new CountingSocketFactory(context.getSocketFactory());
+		} catch( Exception e ) {
+			// fall back to the platform default factory, we just won't see handshakes
+		}
+		this.sslFactory = factory;
+	}
+
+	/** Wait up to timeout ms (or forever, if timeout <= 0) for a free connection to the host of url.
+	 * Returns the slot to give back to release(), or null if none became available in time.
+	 */
+	Host acquire(URL url, int timeout) throws InterruptedException {
+		String key = url.getAuthority();
+		Host host = hosts.get(key);
+		if( host == null ) {
+			Host created = new Host(maxPerHost);
+			host = hosts.putIfAbsent(key, created);
+			if( host == null ) host = created;
+		}
+		if( host.permits.tryAcquire() ) return host;
+		waits.incrementAndGet();
+		if( timeout <= 0 ) {
+			host.permits.acquire();
+			return host;
+		}
+		return host.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) ? host : null;
+	}
+	/** Return a connection slot taken by acquire(). */
+	void release(Host host) {
+		if( host != null ) host.permits.release();
+	}
+
+	/** Configure a new connection to use this pool, must be called before connecting. */
+	void prepare(HttpURLConnection conn) {
+		opened.get()[0] = false;
+		if( sslFactory != null && conn instanceof HttpsURLConnection ) {
+			((HttpsURLConnection)conn).setSSLSocketFactory(sslFactory);
+		}
+	}
+	/** Record whether a connection was reused, must be called on the same thread, after connecting. */
+	void connected(HttpURLConnection conn) {
+		if( sslFactory == null || ! (conn instanceof HttpsURLConnection) ) return;
+		boolean[] flag = opened.get();
+		if( flag[0] ) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		flag[0] = false;
+	}
+
+	/** Read whatever is left on a response stream and close it, so the socket can go back into the keep-alive cache. */
+	static void drain(InputStream s) {
+		if( s == null ) return;
+		try {
+			byte[] buf = new byte[512];
+			while( s.read(buf) != -1 ) { }
+			s.close();
+		} catch( IOException e ) {
+			// the socket will simply not be reused
+		}
+	}
+
+	/** Return the maximum number of connections that may be open to one host. */
+	public int getMaxConnectionsPerHost() { return maxPerHost; }
+	/** Return how long (in milliseconds) a TLS session is kept for resumption. */
+	public int getIdleTimeout() { return idleTimeout; }
+	/** Return the number of HTTPS requests that reused an already open connection. */
+	public long getHits() { return hits.get(); }
+	/** Return the number of HTTPS requests that had to open a new connection (and do a TLS handshake). */
+	public long getMisses() { return misses.get(); }
+	/** Return the number of requests that had to wait for a free connection. */
+	public long getWaits() { return waits.get(); }
+	/** Return the number of connections currently in use, across all hosts. */
+	public int getActiveConnections() {
+		int n = 0;
+		for( Host host : hosts.values() ) n += maxPerHost - host.permits.availablePermits();
+		return n;
+	}
+	public String toString() {
+		return "{ \"hits\": " + hits.get() + ", \"misses\": " + misses.get() + ", \"waits\": " + waits.get() + ", \"active\": " + getActiveConnections() + " }";
+	}
+
+	// Wraps the real factory, to notice when a new socket is opened
+	private class CountingSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory factory;
+		CountingSocketFactory(SSLSocketFactory factory) { this.factory = factory; }
+		private Socket opened(Socket s) {
+			ConnectionPool.this.opened.get()[0] = true;
+			return s;
+		}
+		@Override public String[] getDefaultCipherSuites() { return factory.getDefaultCipherSuites(); }
+		@Override public String[] getSupportedCipherSuites() { return factory.getSupportedCipherSuites(); }
+		@Override public Socket createSocket() throws IOException {
+			return opened(factory.createSocket());
+		}
+		@Override public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return opened(factory.createSocket(s, host, port, autoClose));
+		}
+		@Override public Socket createSocket(String host, int port) throws IOException {
+			return opened(factory.createSocket(host, port));
+		}
+		@Override public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return opened(factory.createSocket(host, port, localHost, localPort));
+		}
+		@Override public Socket createSocket(InetAddress host, int port) throws IOException {
+			return opened(factory.createSocket(host, port));
+		}
+		@Override public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return opened(factory.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
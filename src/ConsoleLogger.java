@@ -0,0 +1,35 @@
+package com.conductrics;
+
+import java.io.PrintStream;
+
+/** A ConsoleLogger prints log messages of a minimum level (or higher) to standard output, prefixed with "Conductrics: ".
+ * This is the default Logger, at level Info; use LogLevel.Debug to also see every request and response.
+ */
+public class ConsoleLogger implements Logger {
+	private final LogLevel minLevel;
+	private final PrintStream out;
+
+	/** Construct a ConsoleLogger that prints messages of the given level or higher to System.out. */
+	public ConsoleLogger(LogLevel minLevel) {
+		this(minLevel, System.out);
+	}
+	/** Construct a ConsoleLogger that prints messages of the given level or higher to a PrintStream. */
+	public ConsoleLogger(LogLevel minLevel, PrintStream out) {
+		if( minLevel == null ) throw new IllegalArgumentException("minLevel");
+		if( out == null ) throw new IllegalArgumentException("out");
+		this.minLevel = minLevel;
+		this.out = out;
+	}
+
+	/** Return the minimum level of the messages that are printed. */
+	public LogLevel getLevel() { return minLevel; }
+
+	public boolean isEnabled(LogLevel level) {
+		return level != LogLevel.Off && level.compareTo(minLevel) >= 0;
+	}
+	public void log(LogLevel level, String message) {
+		if( ! isEnabled(level) ) return;
+		// one println, so that lines from different threads are not interleaved
+		out.println("Conductrics: " + message);
+	}
+}
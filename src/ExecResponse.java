@@ -6,6 +6,9 @@ import java.util.List;
 import java.util.LinkedList;
 import java.util.Arrays;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
@@ -20,9 +23,115 @@ public class ExecResponse {
 	private List<String> traits = new LinkedList<>();
 	private List<String> log = new LinkedList<>();
 	private JSONObject json;
+	private boolean streamed = false; // read by read(), json is rebuilt on demand
 	public ExecResponse(Exception err) {
 		setError( err );
 	}
+	private ExecResponse() { }
+
+	/** Read an ExecResponse straight from the body of an API response, without building a JSONObject first.
+	 * @param body The response body, a JSON object with "status" and "data" keys.
+	 * @param opts The RequestOptions of the request, used for default options.
+	 * @throws IOException if the body can not be read.
+	 * @throws JSONException if the body is not valid JSON.
+	 */
+	static ExecResponse read(InputStream body, RequestOptions opts) throws IOException {
+		JsonReader reader = new JsonReader(body);
+		ExecResponse response = new ExecResponse();
+		int status = -1;
+		boolean hasData = false;
+		reader.beginObject();
+		while( reader.hasNext() ) {
+			String name = reader.nextName();
+			if( name.equals("status") ) {
+				status = reader.nextInt();
+			} else if( name.equals("data") && reader.peek() == JsonReader.BEGIN_OBJECT ) {
+				response.readData(reader, opts);
+				hasData = true;
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if( status != 200 ) return new ExecResponse(new Exception("bad 'status' value in JSON response: " + status));
+		if( ! hasData ) return new ExecResponse(new Exception("no 'data' key in JSON response"));
+		response.streamed = true;
+		return response;
+	}
+	private void readData(JsonReader reader, RequestOptions opts) throws IOException {
+		boolean hasItems = false;
+		reader.beginObject();
+		while( reader.hasNext() ) {
+			String name = reader.nextName();
+			if( name.equals("traits") && reader.peek() == JsonReader.BEGIN_ARRAY ) {
+				readStrings(reader, traits);
+			} else if( name.equals("log") && reader.peek() == JsonReader.BEGIN_ARRAY ) {
+				readStrings(reader, log);
+			} else if( name.equals("items") && reader.peek() == JsonReader.BEGIN_ARRAY ) {
+				hasItems = true;
+				reader.beginArray();
+				while( reader.hasNext() ) readItem(reader, opts);
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if( ! hasItems ) setError( new JSONException("JSONObject[\"items\"] not found.") );
+	}
+	private static void readStrings(JsonReader reader, List<String> into) throws IOException {
+		reader.beginArray();
+		while( reader.hasNext() ) into.add(reader.nextString());
+		reader.endArray();
+	}
+	private void readItem(JsonReader reader, RequestOptions opts) throws IOException {
+		String a = null, c = null, p = null, s = null, g = null;
+		HashMap<String, String> md = null;
+		HashMap<String, Double> rs = null;
+		reader.beginObject();
+		while( reader.hasNext() ) {
+			String name = reader.nextName();
+			if( name.equals("a") ) a = reader.nextString();
+			else if( name.equals("c") ) c = reader.nextString();
+			else if( name.equals("p") ) p = reader.nextString();
+			else if( name.equals("s") ) s = reader.nextString();
+			else if( name.equals("g") ) g = reader.nextString();
+			else if( name.equals("md") && reader.peek() == JsonReader.BEGIN_OBJECT ) {
+				md = new HashMap<>();
+				reader.beginObject();
+				while( reader.hasNext() ) {
+					String key = reader.nextName();
+					md.put(key, reader.nextString());
+				}
+				reader.endObject();
+			} else if( name.equals("rs") && reader.peek() == JsonReader.BEGIN_ARRAY ) {
+				rs = new HashMap<>();
+				reader.beginArray();
+				while( reader.hasNext() ) {
+					String agent = null;
+					double v = 0.0;
+					reader.beginObject();
+					while( reader.hasNext() ) {
+						String key = reader.nextName();
+						if( key.equals("a") ) agent = reader.nextString();
+						else if( key.equals("v") ) v = reader.nextDouble();
+						else reader.skipValue();
+					}
+					reader.endObject();
+					if( agent != null ) rs.put(agent, v);
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if( a != null ) {
+			sels.put(a, new SelectResponse(a, c, p, s, md, this, opts.getDefault(a)));
+		} else if( g != null ) {
+			rewards.put(g, new GoalResponse(g, rs));
+		}
+	}
 	public ExecResponse(JSONObject response, RequestOptions opts) {
 		if( response == null ) {
 			return;
@@ -80,8 +189,20 @@ public class ExecResponse {
 	public List<String> getLog() {
 		return log;
 	}
-	/** Return the underlying JSONObject from which the response was extracted. */
-	public JSONObject getJSONObject() {
+	/** Return the underlying JSONObject from which the response was extracted.
+	 * Responses read from the network are not parsed into a JSONObject, so for those it is rebuilt on demand,
+	 * from the selections, rewards, traits and log that were read.
+	 */
+	public synchronized JSONObject getJSONObject() {
+		if( json == null && streamed ) {
+			JSONArray items = new JSONArray();
+			for( SelectResponse sel : sels.values() ) items.put(sel.toJSONObject());
+			for( GoalResponse goal : rewards.values() ) items.put(goal.toJSONObject());
+			json = new JSONObject()
+				.put("items", items)
+				.put("traits", new JSONArray(traits))
+				.put("log", new JSONArray(log));
+		}
 		return json;
 	}
 	private Exception error;
@@ -23,6 +23,14 @@ public class GoalResponse {
 	GoalResponse(String goalCode) {
 		g = goalCode;
 	}
+	GoalResponse(String goalCode, HashMap<String, Double> accepted) {
+		g = goalCode;
+		if( accepted == null ) {
+			setError(new Exception("JSONObject[\"rs\"] not found."));
+		} else {
+			rs = accepted;
+		}
+	}
 	GoalResponse(JSONObject item) {
 		try {
 			g = item.getString("g");
@@ -46,6 +54,14 @@ public class GoalResponse {
 		return ret;
 	}
 
+	JSONObject toJSONObject() {
+		JSONArray a = new JSONArray();
+		for( String agentCode : rs.keySet() ) {
+			a.put(new JSONObject().put("a", agentCode).put("v", rs.get(agentCode)));
+		}
+		return new JSONObject().put("g", g).put("rs", a);
+	}
+
 	/** Return the goal code to which the value was sent. */
 	public String getGoalCode() { return g; }
 	/** Return the amount of value accepted by a particular agent. */
@@ -0,0 +1,50 @@
+package com.conductrics;
+
+/** A HedgePolicy sends a second, identical request for a selection that is slower than usual, and takes whichever answer comes first.
+ * "Slower than usual" is a percentile of the recent latency of selections, eg the 95th: only about 5% of selections are hedged,
+ * but the slowest ones no longer wait for one unlucky server or connection.
+ * Only plain selections are hedged, never rewards, provisional or confirming selections, or exec() commands, which are not safe to send twice.
+ * The extra load is limited by a budget; by default one hedge per 20 selections, plus a burst of 5.
+ * <pre>
+ * new ClientOptions().setHedgePolicy( new HedgePolicy().setPercentile(95).setDelayBounds(5, 500) )
+ * </pre>
+ */
+public class HedgePolicy {
+	private double percentile = 95;
+	private int minDelay = 5;
+	private int maxDelay = 1000;
+	private RetryBudget budget = new RetryBudget(0.05, 5);
+
+	/** Construct a HedgePolicy with the default settings: hedge after the 95th percentile latency, between 5ms and 1s. */
+	public HedgePolicy() { }
+
+	/** Return the percentile of recent latency after which a second request is sent. */
+	public double getPercentile() { return percentile; }
+	/** Send a second request once the first has taken longer than this percentile (eg 95) of recent selections. */
+	public HedgePolicy setPercentile(double value) {
+		if( value <= 0 || value >= 100 ) throw new IllegalArgumentException("percentile");
+		percentile = value;
+		return this;
+	}
+
+	/** Return the shortest delay (in milliseconds) before a second request. */
+	public int getMinDelay() { return minDelay; }
+	/** Return the longest delay (in milliseconds) before a second request, also used until enough latency has been measured. */
+	public int getMaxDelay() { return maxDelay; }
+	/** Keep the delay before a second request between min and max milliseconds, whatever the measured latency. */
+	public HedgePolicy setDelayBounds(int min, int max) {
+		if( min < 0 ) throw new IllegalArgumentException("min");
+		if( max < min ) throw new IllegalArgumentException("max");
+		minDelay = min;
+		maxDelay = max;
+		return this;
+	}
+
+	/** Return the budget that limits the number of hedged requests, or null if they are not limited. */
+	public RetryBudget getBudget() { return budget; }
+	/** Limit hedged requests with a budget: each selection adds to it, and each hedged request takes one token. */
+	public HedgePolicy setBudget(RetryBudget value) {
+		budget = value;
+		return this;
+	}
+}
@@ -0,0 +1,180 @@
+package com.conductrics;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+
+/** A Hedger sends selections according to a HedgePolicy: if the first request has not been answered after the hedge delay,
+ * a second identical request is sent, the first good answer is given to the caller, and the other request is cancelled.
+ * The hedge delay is a percentile of the latency of the last WINDOW answers.
+ */
+class Hedger implements CommandBatcher.Sender {
+	private static final int WINDOW = 256;
+	private static final int MIN_SAMPLES = 20; // until then, the policy's maximum delay is used
+
+	private final HedgePolicy policy;
+	private final ScheduledExecutorService scheduler;
+	private final Metrics metrics;
+	private final CommandBatcher.Sender sender;
+
+	private final long[] latency = new long[WINDOW]; // guarded by this, a ring of recent latencies in nanoseconds
+	private int next = 0; // where the next latency goes in the ring
+	private int samples = 0; // up to WINDOW
+	private int unsorted = 0; // latencies recorded since the delay was updated
+	private volatile long delay; // nanoseconds, updated every few samples
+
+	Hedger(HedgePolicy policy, ScheduledExecutorService scheduler, Metrics metrics, CommandBatcher.Sender sender) {
+		this.policy = policy;
+		this.scheduler = scheduler;
+		this.metrics = metrics;
+		this.sender = sender;
+		this.delay = TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelay());
+	}
+
+	// the time it took to answer one request, or a lower bound of it if the request lost and was cancelled
+	private void record(long nanos) {
+		long[] sorted = null;
+		synchronized( this ) {
+			latency[next] = nanos;
+			next = (next + 1) % WINDOW;
+			if( samples < WINDOW ) samples++;
+			if( ++unsorted >= 16 && samples >= MIN_SAMPLES ) {
+				unsorted = 0;
+				sorted = Arrays.copyOf(latency, samples);
+			}
+		}
+		if( sorted == null ) return;
+		Arrays.sort(sorted);
+		long p = sorted[(int)Math.min(sorted.length - 1, Math.ceil(sorted.length * policy.getPercentile() / 100) - 1)];
+		long min = TimeUnit.MILLISECONDS.toNanos(policy.getMinDelay());
+		long max = TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelay());
+		delay = Math.max(min, Math.min(max, p));
+	}
+
+	/** Return the current delay (in milliseconds) before a second request is sent. */
+	double getDelay() { return delay / 1e6; }
+
+	public Transport.Cancellable send(RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback, boolean background) {
+		if( opts == null || opts.getOffline() || opts.getProvisional() || opts.getConfirm() ) {
+			return sender.send(opts, commands, callback, background); // not safe to send twice
+		}
+		RetryBudget budget = policy.getBudget();
+		if( budget != null ) budget.deposit();
+		Hedge hedge = new Hedge(opts, commands, callback);
+		hedge.start(background);
+		return hedge;
+	}
+
+	// one request sent for a Hedge
+	private static class Attempt {
+		final boolean hedge; // false for the first request
+		final long sent = System.nanoTime();
+		volatile Transport.Cancellable request;
+		volatile boolean answered = false;
+		Attempt(boolean hedge) { this.hedge = hedge; }
+		void cancel() {
+			Transport.Cancellable r = request;
+			if( r != null && ! answered ) r.cancel();
+		}
+	}
+
+	// the first request and (maybe) its hedge; only one answer reaches the caller
+	private class Hedge implements Transport.Cancellable {
+		private final RequestOptions opts;
+		private final JSONArray commands;
+		private final Callback<ExecResponse> callback;
+		private final AtomicBoolean done = new AtomicBoolean();
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private boolean cancelled = false; // guarded by this
+		private volatile Attempt first, second;
+		private volatile ScheduledFuture<?> timer;
+
+		Hedge(RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback) {
+			this.opts = opts;
+			this.commands = commands;
+			this.callback = callback;
+		}
+
+		void start(boolean background) {
+			first = send(false, background);
+			if( done.get() ) return; // answered already, eg rejected by a full queue
+			try {
+				timer = scheduler.schedule(new Runnable() {
+					public void run() { hedge(); }
+				}, delay, TimeUnit.NANOSECONDS);
+			} catch( RejectedExecutionException e ) {
+				// shut down, the first request is all there is
+			}
+			if( done.get() ) cancelTimer();
+		}
+
+		private Attempt send(boolean hedge, boolean background) {
+			Attempt attempt = new Attempt(hedge);
+			outstanding.incrementAndGet();
+			attempt.request = sender.send(opts, commands, answer(attempt), background);
+			return attempt;
+		}
+
+		private void hedge() {
+			synchronized( this ) {
+				if( cancelled || done.get() ) return;
+				RetryBudget budget = policy.getBudget();
+				if( budget != null && ! budget.withdraw() ) {
+					metrics.hedgeDenied();
+					return;
+				}
+			}
+			metrics.hedged();
+			Attempt attempt = send(true, true); // on the timer thread
+			second = attempt;
+			boolean stop;
+			synchronized( this ) {
+				stop = cancelled;
+			}
+			// the first request won (or the caller gave up) while this one was being sent
+			if( stop || done.get() ) attempt.cancel();
+		}
+
+		private Callback<ExecResponse> answer(final Attempt attempt) {
+			return new Callback<ExecResponse>() {
+				public void onValue(ExecResponse response) {
+					attempt.answered = true;
+					int left = outstanding.decrementAndGet();
+					boolean ok = response != null && response.getError() == null;
+					if( ok ) record(System.nanoTime() - attempt.sent);
+					if( ! ok && left > 0 ) return; // the other request may still succeed
+					if( ! done.compareAndSet(false, true) ) return;
+					cancelTimer();
+					Attempt loser = attempt.hedge ? first : second;
+					if( loser != null && ! loser.answered ) {
+						record(System.nanoTime() - loser.sent); // it would have taken at least this long
+						loser.cancel();
+					}
+					if( attempt.hedge ) metrics.hedgeWon();
+					if( callback != null ) callback.onValue(response);
+				}
+			};
+		}
+
+		private void cancelTimer() {
+			ScheduledFuture<?> t = timer;
+			if( t != null ) t.cancel(false);
+		}
+
+		public void cancel() {
+			synchronized( this ) {
+				cancelled = true;
+			}
+			cancelTimer();
+			Attempt a = first, b = second;
+			if( a != null ) a.cancel();
+			if( b != null ) b.cancel();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/** An HttpClientTransport sends requests with java.net.http.HttpClient (Java 11+), instead of one blocking HttpURLConnection per request.
+ * Requests are sent with sendAsync(): no thread waits for a response, and many requests share a few HTTP/2 connections
+ * (or HTTP/1.1 connections, if the server does not speak HTTP/2), so the number of requests in flight is not limited by threads.
+ * Each response body is parsed as it arrives, on a thread of the HttpClient's executor.
+ * On Java 11 to 15, cancelling a request (by cancel(), or when its deadline passes) before its response has started does not abort the exchange,
+ * which goes on until the HttpClient's own timeout; the callback is still answered at once. From Java 16, the exchange is aborted.
+ * Like any other Transport, it is wrapped in a ManagedTransport, for retries, compression, and metrics.
+ */
+class HttpClientTransport implements Transport {
+	private final HttpClient client;
+
+	/** @param executor Runs the HttpClient's callbacks, or null for its own. */
+	HttpClientTransport(Executor executor) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.NEVER);
+		if( executor != null ) builder.executor(executor);
+		client = builder.build();
+	}
+
+	public Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, final Listener listener) {
+		HttpRequest.Builder request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(url));
+		} catch( IllegalArgumentException e ) {
+			listener.onError( e );
+			return Conductrics.NOT_CANCELLABLE;
+		}
+		if( headers != null ) {
+			for( Map.Entry<String, String> header : headers.entrySet() ) {
+				request.header(header.getKey(), header.getValue());
+			}
+		}
+		if( deadline != 0 ) {
+			long remaining = deadline - System.nanoTime();
+			if( remaining <= 0 ) {
+				listener.onError( new SocketTimeoutException("request expired") );
+				return Conductrics.NOT_CANCELLABLE;
+			}
+			request.timeout(Duration.ofNanos(remaining));
+		}
+		request.method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+		final Exchange exchange = new Exchange();
+		exchange.future = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+		exchange.future.whenComplete(new BiConsumer<HttpResponse<InputStream>, Throwable>() {
+			public void accept(HttpResponse<InputStream> response, Throwable thrown) {
+				if( thrown instanceof CompletionException && thrown.getCause() != null ) thrown = thrown.getCause();
+				if( thrown instanceof CancellationException ) {
+					listener.onError( new CancellationException("request cancelled") );
+				} else if( thrown instanceof HttpTimeoutException ) {
+					// a SocketTimeoutException, like the other transport, so that it is retried and reported the same way
+					SocketTimeoutException e = new SocketTimeoutException(thrown.getMessage());
+					e.initCause(thrown);
+					listener.onError( e );
+				} else if( thrown instanceof Exception ) {
+					listener.onError( (Exception)thrown );
+				} else if( thrown != null ) {
+					listener.onError( new IOException(thrown) );
+				} else {
+					InputStream in = response.body();
+					exchange.body = in;
+					try {
+						if( response.statusCode() >= 400 ) {
+							listener.onError( new HttpStatusException(response.statusCode()) );
+						} else if( exchange.cancelled ) {
+							listener.onError( new CancellationException("request cancelled") );
+						} else {
+							listener.onResponse( in, response.headers().firstValue("content-encoding").orElse(null) );
+						}
+					} finally {
+						try {
+							in.close(); // gives up what is left of the body
+						} catch( IOException e ) { }
+					}
+				}
+			}
+		});
+		return exchange;
+	}
+
+	// one request: cancel() aborts it while it waits for the response, and closes the body while it is being read
+	private static class Exchange implements Cancellable {
+		volatile CompletableFuture<HttpResponse<InputStream>> future;
+		volatile InputStream body; // set once the response has started
+		volatile boolean cancelled = false;
+
+		public void cancel() {
+			cancelled = true;
+			future.cancel(true); // the listener gets a CancellationException, if the response has not started
+			InputStream in = body;
+			if( in != null ) {
+				try {
+					in.close(); // the parse fails, and is reported as cancelled
+				} catch( IOException e ) { }
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.conductrics;
+
+import java.io.IOException;
+
+/** An HttpStatusException is the error of a request that the server answered with an HTTP error status (400 or above). */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	private final int status;
+
+	public HttpStatusException(int status) {
+		super("Server returned HTTP response code: " + status);
+		this.status = status;
+	}
+
+	/** Return the HTTP status code, eg 503. */
+	public int getStatus() { return status; }
+}
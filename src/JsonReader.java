@@ -0,0 +1,258 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/** A JsonReader reads a JSON document one token at a time, straight from a stream,
+ * so that responses can be turned into ExecResponse objects without building an intermediate String or JSONObject tree.
+ * Malformed input is reported as a JSONException, like the org.json parser does.
+ */
+class JsonReader {
+	static final int END = 0, BEGIN_OBJECT = 1, END_OBJECT = 2, BEGIN_ARRAY = 3, END_ARRAY = 4,
+		NAME = 5, STRING = 6, NUMBER = 7, BOOLEAN = 8, NULL = 9;
+
+	private final Reader in;
+	private final char[] buf = new char[2048];
+	private int pos = 0;
+	private int limit = 0;
+	private final StringBuilder sb = new StringBuilder();
+
+	// a stack of open containers, to know whether a string is a name or a value
+	private int[] stack = new int[16];
+	private int depth = 0;
+	private static final int OBJECT = 1, ARRAY = 2;
+	private boolean expectName = false; // inside an object, before a name
+	private boolean first = false; // at the first element of a container
+	private int peeked = -1;
+
+	JsonReader(InputStream in) {
+		this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+	}
+	JsonReader(Reader in) {
+		this.in = in;
+	}
+
+	private boolean fill() throws IOException {
+		if( pos < limit ) return true;
+		limit = in.read(buf, 0, buf.length);
+		pos = 0;
+		if( limit <= 0 ) {
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+	private int nextNonWhitespace() throws IOException {
+		while( fill() ) {
+			char c = buf[pos++];
+			if( c != ' ' && c != '\n' && c != '\r' && c != '\t' ) return c;
+		}
+		return -1;
+	}
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " in JSON response");
+	}
+	private void expect(int actual, int wanted) {
+		if( actual != wanted ) throw syntaxError("Unexpected token");
+	}
+
+	/** Return the type of the next token, without consuming it. */
+	int peek() throws IOException {
+		if( peeked != -1 ) return peeked;
+		int c = nextNonWhitespace();
+		if( depth > 0 ) {
+			int container = stack[depth - 1];
+			if( c == (container == OBJECT ? '}' : ']') ) {
+				return peeked = (container == OBJECT ? END_OBJECT : END_ARRAY);
+			}
+			if( ! first && (container == ARRAY || expectName) ) {
+				if( c != ',' ) throw syntaxError("Expected ','");
+				c = nextNonWhitespace();
+			}
+			if( container == OBJECT && expectName ) {
+				if( c != '"' ) throw syntaxError("Expected a name");
+				return peeked = NAME;
+			}
+		}
+		switch( c ) {
+			case -1: return peeked = END;
+			case '{': return peeked = BEGIN_OBJECT;
+			case '[': return peeked = BEGIN_ARRAY;
+			case '"': return peeked = STRING;
+			case 't': case 'f': pos--; return peeked = BOOLEAN;
+			case 'n': pos--; return peeked = NULL;
+			default:
+				if( c == '-' || (c >= '0' && c <= '9') ) {
+					pos--;
+					return peeked = NUMBER;
+				}
+				throw syntaxError("Unexpected character '" + (char)c + "'");
+		}
+	}
+	private int consume() throws IOException {
+		int token = peek();
+		peeked = -1;
+		first = false;
+		if( depth > 0 && stack[depth - 1] == OBJECT ) {
+			// after a name comes its value, after a value comes the next name
+			expectName = token != NAME;
+		}
+		return token;
+	}
+	private void push(int container) {
+		if( depth == stack.length ) {
+			int[] grown = new int[depth * 2];
+			System.arraycopy(stack, 0, grown, 0, depth);
+			stack = grown;
+		}
+		stack[depth++] = container;
+		first = true;
+		expectName = container == OBJECT;
+	}
+	private void pop() {
+		depth--;
+		first = false;
+		expectName = depth > 0 && stack[depth - 1] == OBJECT;
+	}
+
+	void beginObject() throws IOException {
+		expect(consume(), BEGIN_OBJECT);
+		push(OBJECT);
+	}
+	void endObject() throws IOException {
+		expect(peek(), END_OBJECT);
+		peeked = -1;
+		pop();
+	}
+	void beginArray() throws IOException {
+		expect(consume(), BEGIN_ARRAY);
+		push(ARRAY);
+	}
+	void endArray() throws IOException {
+		expect(peek(), END_ARRAY);
+		peeked = -1;
+		pop();
+	}
+	/** Return true if the current object or array has more elements. */
+	boolean hasNext() throws IOException {
+		int token = peek();
+		return token != END_OBJECT && token != END_ARRAY && token != END;
+	}
+
+	String nextName() throws IOException {
+		expect(consume(), NAME);
+		String name = readString();
+		if( nextNonWhitespace() != ':' ) throw syntaxError("Expected ':'");
+		return name;
+	}
+	/** Return the next value as a String; numbers and booleans are returned as their text, null as null. */
+	String nextString() throws IOException {
+		int token = consume();
+		switch( token ) {
+			case STRING: return readString();
+			case NUMBER: case BOOLEAN: return readLiteral();
+			case NULL: readLiteral(); return null;
+			default: throw syntaxError("Expected a string");
+		}
+	}
+	double nextDouble() throws IOException {
+		int token = consume();
+		String text = token == STRING ? readString() : token == NUMBER ? readLiteral() : null;
+		if( text == null ) throw syntaxError("Expected a number");
+		try {
+			return Double.parseDouble(text);
+		} catch( NumberFormatException e ) {
+			throw syntaxError("Invalid number '" + text + "'");
+		}
+	}
+	int nextInt() throws IOException {
+		double d = nextDouble();
+		return (int)d;
+	}
+	/** Skip the next value, including everything nested in it. */
+	void skipValue() throws IOException {
+		int token = peek();
+		if( token == BEGIN_OBJECT ) {
+			beginObject();
+			while( hasNext() ) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+		} else if( token == BEGIN_ARRAY ) {
+			beginArray();
+			while( hasNext() ) skipValue();
+			endArray();
+		} else {
+			nextString();
+		}
+	}
+
+	// read the rest of a string, the opening quote is already consumed
+	private String readString() throws IOException {
+		sb.setLength(0);
+		while( true ) {
+			int start = pos;
+			while( pos < limit ) {
+				char c = buf[pos];
+				if( c == '"' ) {
+					sb.append(buf, start, pos - start);
+					pos++;
+					return sb.toString();
+				}
+				if( c == '\\' ) break;
+				pos++;
+			}
+			sb.append(buf, start, pos - start);
+			if( pos < limit ) { // an escape sequence
+				pos++;
+				sb.append(readEscape());
+			} else if( ! fill() ) {
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+	private char readChar() throws IOException {
+		if( ! fill() ) throw syntaxError("Unexpected end");
+		return buf[pos++];
+	}
+	private char readEscape() throws IOException {
+		char c = readChar();
+		switch( c ) {
+			case 'b': return '\b';
+			case 't': return '\t';
+			case 'n': return '\n';
+			case 'f': return '\f';
+			case 'r': return '\r';
+			case 'u':
+				int value = 0;
+				for( int i = 0; i < 4; i++ ) {
+					int digit = Character.digit(readChar(), 16);
+					if( digit < 0 ) throw syntaxError("Invalid escape sequence");
+					value = (value << 4) + digit;
+				}
+				return (char)value;
+			default: return c; // '"', '\\', '/'
+		}
+	}
+	// read an unquoted value: a number, true, false or null
+	private String readLiteral() throws IOException {
+		sb.setLength(0);
+		while( fill() ) {
+			char c = buf[pos];
+			if( c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ':' ) break;
+			sb.append(c);
+			pos++;
+		}
+		String text = sb.toString();
+		if( text.equals("true") || text.equals("false") || text.equals("null") ) return text;
+		char c = text.length() > 0 ? text.charAt(0) : ' ';
+		if( c != '-' && (c < '0' || c > '9') ) throw syntaxError("Unexpected value '" + text + "'");
+		return text;
+	}
+}
@@ -0,0 +1,10 @@
+package com.conductrics;
+
+/** Indicates the severity of a log message, from least to most severe. Off is only used as a threshold, to disable logging. @see Logger */
+public enum LogLevel {
+	Debug,
+	Info,
+	Warn,
+	Error,
+	Off
+}
@@ -0,0 +1,12 @@
+package com.conductrics;
+
+/** A Logger receives the log messages of a Conductrics instance. @see ClientOptions.setLogger
+ * A message is only built if isEnabled() returns true for its level, so a disabled level costs nothing.
+ * log() is called on the thread that made or ran the request; an implementation that does slow I/O should be wrapped in an AsyncLogger.
+ */
+public interface Logger {
+	/** Return true if messages of this level should be given to log(). */
+	public boolean isEnabled(LogLevel level);
+	/** Record one message. The API key is never included in a message. */
+	public void log(LogLevel level, String message);
+}
@@ -0,0 +1,277 @@
+package com.conductrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/** A ManagedTransport gives every Transport, the default UrlConnectionTransport included:
+ * compressed request bodies and decompressed responses, retries according to the RetryPolicy, and the Timing of each attempt in the Metrics.
+ * The Transport it wraps only has to send each request once, as it is given.
+ */
+class ManagedTransport implements Transport {
+	private final Transport transport;
+	private final Logger logger;
+	private final Metrics metrics;
+	private final ScheduledExecutorService scheduler; // waits out the backoff before a retry
+	private final RetryPolicy retryPolicy; // null if failed requests are not retried
+	private final int gzipRequests; // 0 if request bodies are never compressed
+	private final boolean gzipResponses;
+	private volatile boolean shutdown = false;
+
+	ManagedTransport(Transport transport, ClientOptions options, Metrics metrics, ScheduledExecutorService scheduler) {
+		this.transport = transport;
+		logger = options.getLogger();
+		retryPolicy = options.getRetryPolicy();
+		gzipRequests = options.getGzipRequests();
+		gzipResponses = options.getGzipResponses();
+		this.metrics = metrics;
+		this.scheduler = scheduler;
+	}
+
+	// new requests fail, the ones in flight are still answered
+	void shutdown() { shutdown = true; }
+
+	public Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, Listener listener) {
+		return send(method, url, headers, body, deadline, listener, false);
+	}
+	/** Like send(), background is true if the request is sent by a thread of the instance, which must never wait for room in a full request queue. */
+	Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, Listener listener, boolean background) {
+		Exchange exchange = new Exchange(method.toUpperCase(), url, headers, body, deadline, listener, background);
+		if( retryPolicy != null && retryPolicy.getBudget() != null ) retryPolicy.getBudget().deposit();
+		exchange.start();
+		return exchange;
+	}
+
+	/** The Listener given to the wrapped Transport; a transport that knows it may fill in the phases of the Timing of the attempt (queue, connect, write, read),
+	 * and must not make the thread wait for room in its queue unless mayBlock().
+	 */
+	interface Attempt extends Listener {
+		Metrics.Timing timing();
+		boolean mayBlock();
+	}
+
+	// counts the bytes read through it, and the time spent reading them
+	static class CountingInputStream extends FilterInputStream {
+		long bytes = 0;
+		long nanos = 0;
+		CountingInputStream(InputStream in) { super(in); }
+		@Override public int read() throws IOException {
+			long t = System.nanoTime();
+			int b = in.read();
+			nanos += System.nanoTime() - t;
+			if( b >= 0 ) bytes++;
+			return b;
+		}
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			long t = System.nanoTime();
+			int n = in.read(b, off, len);
+			nanos += System.nanoTime() - t;
+			if( n > 0 ) bytes += n;
+			return n;
+		}
+		@Override public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			bytes += skipped;
+			return skipped;
+		}
+	}
+
+	// one request, through all its attempts
+	private class Exchange implements Cancellable, Attempt {
+		private final String method;
+		private final String url;
+		private final Map<String, String> headers;
+		private final byte[] body;
+		private final long deadline; // when the timeout passes, for all attempts together; 0 if it has no timeout
+		private final Listener listener;
+		private final boolean background; // sent by a thread of the instance
+		private int attempt = 1;
+		private Metrics.Timing timing = new Metrics.Timing(); // of the current attempt
+		private long sent; // when the current attempt was sent
+		private volatile boolean cancelled = false;
+		private volatile Cancellable request; // the current attempt
+		private volatile ScheduledFuture<?> retryTimer; // set while waiting to retry
+
+		Exchange(String method, String url, Map<String, String> headers, byte[] body, long deadline, Listener listener, boolean background) {
+			this.method = method;
+			this.url = url;
+			this.headers = headers;
+			this.body = body;
+			this.deadline = deadline;
+			this.listener = listener;
+			this.background = background;
+		}
+
+		public void cancel() {
+			cancelled = true;
+			ScheduledFuture<?> timer = retryTimer;
+			if( timer != null && timer.cancel(false) ) {
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			Cancellable r = request;
+			if( r != null ) r.cancel();
+		}
+
+		public Metrics.Timing timing() { return timing; }
+		// only the first attempt of a caller's request; a retry is sent by the timer thread
+		public boolean mayBlock() { return ! background && attempt == 1; }
+
+		// Every failure of this request goes through here, to be counted.
+		private void error(Exception e) {
+			timing.error = e;
+			if( ! (e instanceof CancellationException) ) metrics.error(e); // cancel() is not a failure
+			listener.onError(e);
+		}
+
+		void start() {
+			if( cancelled ) {
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			if( shutdown ) {
+				error( new RejectedExecutionException("transport shut down") );
+				return;
+			}
+			if( deadline != 0 && System.nanoTime() - deadline >= 0 ) {
+				error( new SocketTimeoutException("request expired") );
+				return;
+			}
+			if( logger.isEnabled(LogLevel.Debug) ) {
+				logger.log(LogLevel.Debug, method + ": " + (body == null ? null : new String(body, StandardCharsets.UTF_8)) + " " + Conductrics.redact(url));
+			}
+			byte[] payload = body;
+			Map<String, String> sentHeaders = headers;
+			if( gzipResponses || (body != null && gzipRequests > 0 && body.length >= gzipRequests) ) {
+				sentHeaders = headers == null ? new HashMap<String, String>() : new HashMap<String, String>(headers);
+			}
+			if( body != null ) {
+				if( gzipRequests > 0 && body.length >= gzipRequests ) {
+					long t = System.nanoTime();
+					byte[] compressed = RequestWriter.get().gzip(body);
+					timing.compress = System.nanoTime() - t;
+					if( compressed.length < body.length ) {
+						payload = compressed;
+						sentHeaders.put("content-encoding", "gzip");
+					}
+				}
+				timing.requestBytes = body.length;
+				timing.requestWireBytes = payload.length;
+			}
+			if( gzipResponses ) sentHeaders.put("accept-encoding", "gzip");
+			metrics.inFlight.incrementAndGet();
+			sent = System.nanoTime();
+			Cancellable r;
+			try {
+				r = transport.send(method, url, sentHeaders, payload, deadline, this);
+			} catch( RuntimeException e ) {
+				onError(e); // a broken transport fails this request, not the caller
+				return;
+			}
+			request = r;
+			if( cancelled && r != null ) r.cancel(); // cancelled while it was being sent
+		}
+
+		// A transport that did not time the phases of the attempt has no queue, and spent all its time reading.
+		private void timed(Metrics.Timing timing) {
+			if( timing.queue >= 0 ) return;
+			timing.queue = 0;
+			timing.read = System.nanoTime() - sent;
+		}
+
+		public void onResponse(InputStream body, String contentEncoding) {
+			metrics.inFlight.decrementAndGet();
+			Metrics.Timing timing = this.timing;
+			timed(timing);
+			CountingInputStream wire = new CountingInputStream(body);
+			CountingInputStream decoded = null; // only if the response is compressed
+			long headerNanos = 0; // the time spent reading the gzip header, before any decompression
+			try {
+				if( "gzip".equalsIgnoreCase(contentEncoding) ) {
+					try {
+						decoded = new CountingInputStream( new GZIPInputStream( wire, 4096 ) );
+						headerNanos = wire.nanos;
+					} catch( IOException e ) {
+						fail("IOException", e);
+						return;
+					}
+				}
+				try {
+					listener.onResponse( decoded != null ? decoded : wire, null ); // decompressed already
+				} finally {
+					if( decoded != null ) {
+						// the time spent in the decompressing stream, less the time it spent waiting for the network
+						timing.decompress = Math.max( 0, decoded.nanos - (wire.nanos - headerNanos) );
+						try {
+							decoded.close(); // releases the Inflater
+						} catch( IOException e ) { }
+					}
+					timing.responseWireBytes = wire.bytes;
+					timing.responseBytes = decoded != null ? decoded.bytes : wire.bytes;
+				}
+			} finally {
+				metrics.record(timing);
+			}
+		}
+
+		public void onError(Exception e) {
+			metrics.inFlight.decrementAndGet();
+			Metrics.Timing timing = this.timing; // a retry starts a new one
+			timed(timing);
+			try {
+				if( e instanceof CancellationException ) {
+					error( e );
+				} else {
+					fail(e instanceof SocketTimeoutException ? "SocketTimeoutException" : "IOException", e);
+				}
+			} finally {
+				metrics.record(timing);
+			}
+		}
+
+		// Report an error (or try again), unless it was caused by cancel()
+		private void fail(String kind, Exception e) {
+			if( cancelled ) {
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			if( retry(kind, e) ) return;
+			Conductrics.log(logger, LogLevel.Warn, kind+"("+method+" "+Conductrics.redact(url)+"): "+e.toString());
+			error( e );
+		}
+
+		// Schedule another attempt, if the RetryPolicy, its budget, and the deadline allow it.
+		private boolean retry(String kind, Exception e) {
+			if( retryPolicy == null ) return false;
+			long delay = retryPolicy.retryDelay(attempt, e, deadline, metrics);
+			if( delay < 0 ) return false;
+			timing.error = e;
+			attempt++;
+			try {
+				retryTimer = scheduler.schedule(new Runnable() {
+					public void run() {
+						retryTimer = null;
+						timing = new Metrics.Timing();
+						timing.attempt = attempt;
+						start();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch( RejectedExecutionException x ) {
+				return false; // shut down
+			}
+			metrics.retried(e);
+			Conductrics.log(logger, LogLevel.Info, "Retrying "+kind+"("+method+" "+Conductrics.redact(url)+"): "+e.toString()+", attempt "+attempt+" of "+retryPolicy.getMaxAttempts()+" in "+delay+"ms");
+			return true;
+		}
+	}
+}
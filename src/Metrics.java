@@ -0,0 +1,360 @@
+package com.conductrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Metrics records what a Conductrics instance is doing: how long each phase of a request takes,
+ * the latency of select() per agent and of reward() per goal, errors by type, how often select() fell back to the default option,
+ * and how many requests are in flight or waiting in the queue.
+ * Every value can be read at any time; use addListener() to be told about each request as it completes,
+ * or toPrometheus() (or a PrometheusExporter) to export everything in the Prometheus text format.
+ */
+public class Metrics {
+	/** The upper bounds (in milliseconds) of the buckets of every Histogram; the last bucket has no upper bound. */
+	public static final double[] BUCKETS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	/** A Histogram counts durations in fixed buckets, see Metrics.BUCKETS. */
+	public static class Histogram {
+		private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder sum = new LongAdder(); // nanoseconds
+		Histogram() {
+			for( int i = 0; i < counts.length; i++ ) counts[i] = new LongAdder();
+		}
+		void record(long nanos) {
+			if( nanos < 0 ) return;
+			double ms = nanos / 1e6;
+			int i = 0;
+			while( i < BUCKETS.length && ms > BUCKETS[i] ) i++;
+			counts[i].increment();
+			sum.add(nanos);
+		}
+		/** Return the number of durations recorded. */
+		public long getCount() {
+			long n = 0;
+			for( LongAdder c : counts ) n += c.sum();
+			return n;
+		}
+		/** Return the total of all durations recorded, in milliseconds. */
+		public double getSum() { return sum.sum() / 1e6; }
+		/** Return the number of durations in each bucket (not cumulative), one more than there are BUCKETS. */
+		public long[] getCounts() {
+			long[] result = new long[counts.length];
+			for( int i = 0; i < counts.length; i++ ) result[i] = counts[i].sum();
+			return result;
+		}
+		/** Return the upper bound (in milliseconds) of the bucket that holds the given percentile (0-100), or NaN if nothing was recorded.
+		 * Durations beyond the last bucket are reported as Infinity.
+		 */
+		public double getPercentile(double percentile) {
+			long[] c = getCounts();
+			long total = 0;
+			for( long n : c ) total += n;
+			if( total == 0 ) return Double.NaN;
+			long rank = (long)Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for( int i = 0; i < c.length; i++ ) {
+				seen += c[i];
+				if( seen >= rank && seen > 0 ) return i < BUCKETS.length ? BUCKETS[i] : Double.POSITIVE_INFINITY;
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+		public String toString() {
+			return "{ \"count\": " + getCount() + ", \"sum\": " + getSum() + ", \"p50\": " + getPercentile(50) + ", \"p99\": " + getPercentile(99) + " }";
+		}
+	}
+
+	/** The Timing of one HTTP request, given to each listener once the request is done.
+	 * Each phase is in milliseconds, or -1 if the request never reached it.
+	 */
+	public static class Timing {
+		long queue = -1, connect = -1, write = -1, read = -1; // nanoseconds
+		long compress = 0, decompress = 0; // nanoseconds
+		long requestBytes = 0, requestWireBytes = 0, responseBytes = 0, responseWireBytes = 0;
+		int attempt = 1;
+		Exception error;
+		Timing() { }
+		private static double ms(long nanos) { return nanos < 0 ? -1 : nanos / 1e6; }
+		/** Return how long the request waited for a free thread. */
+		public double getQueue() { return ms(queue); }
+		/** Return how long it took to get a connection, including waiting for a free slot in the ConnectionPool. */
+		public double getConnect() { return ms(connect); }
+		/** Return how long it took to send the request body. */
+		public double getWrite() { return ms(write); }
+		/** Return how long it took for the server to respond, once the request was sent. */
+		public double getRead() { return ms(read); }
+		/** Return how long it took to compress the request body, 0 if it was not compressed. */
+		public double getCompressTime() { return ms(compress); }
+		/** Return how long it took to decompress the response body, 0 if it was not compressed. */
+		public double getDecompressTime() { return ms(decompress); }
+		/** Return the size (in bytes) of the request body, before compression. */
+		public long getRequestBytes() { return requestBytes; }
+		/** Return the size (in bytes) of the request body as it was sent. */
+		public long getRequestWireBytes() { return requestWireBytes; }
+		/** Return the size (in bytes) of the response body, after decompression. */
+		public long getResponseBytes() { return responseBytes; }
+		/** Return the size (in bytes) of the response body as it was received. */
+		public long getResponseWireBytes() { return responseWireBytes; }
+		/** Return the number of bytes that compression saved, in both directions. */
+		public long getBytesSaved() { return requestBytes - requestWireBytes + responseBytes - responseWireBytes; }
+		/** Return the error the request failed with, or null if it succeeded. */
+		public Exception getError() { return error; }
+		/** Return which attempt of the request this was, 1 unless it was retried. */
+		public int getAttempt() { return attempt; }
+		public String toString() {
+			return "{ \"queue\": " + getQueue() + ", \"connect\": " + getConnect() + ", \"write\": " + getWrite() + ", \"read\": " + getRead()
+				+ ", \"bytesSaved\": " + getBytesSaved() + ", \"compress\": " + getCompressTime() + ", \"decompress\": " + getDecompressTime()
+				+ ", \"attempt\": " + attempt + ", \"error\": " + (error == null ? "null" : "\"" + error.getClass().getSimpleName() + "\"") + " }";
+		}
+	}
+
+	private final Map<String, Histogram> phases = new TreeMap<>(); // fixed, never modified after construction
+	private final ConcurrentHashMap<String, Histogram> selects = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Histogram> rewards = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> fallbacks = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> retries = new ConcurrentHashMap<>();
+	private final LongAdder retriesDenied = new LongAdder();
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder hedgesDenied = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> circuitChanges = new ConcurrentHashMap<>();
+	volatile CircuitBreaker circuitBreaker; // null if the instance has none
+	private final LongAdder requestBytes = new LongAdder();
+	private final LongAdder requestWireBytes = new LongAdder();
+	private final LongAdder responseBytes = new LongAdder();
+	private final LongAdder responseWireBytes = new LongAdder();
+	private final LongAdder compress = new LongAdder(); // nanoseconds
+	private final LongAdder decompress = new LongAdder(); // nanoseconds
+	final AtomicInteger queued = new AtomicInteger();
+	final AtomicInteger inFlight = new AtomicInteger(); // given to the transport and not answered yet, including the requests still in its queue
+	private final List<Callback<Timing>> listeners = new CopyOnWriteArrayList<>();
+
+	Metrics() {
+		for( String phase : new String[] { "queue", "connect", "write", "read", "parse" } ) {
+			phases.put(phase, new Histogram());
+		}
+	}
+
+	private static Histogram histogram(ConcurrentHashMap<String, Histogram> map, String key) {
+		Histogram h = map.get(key);
+		if( h == null ) {
+			Histogram created = new Histogram();
+			h = map.putIfAbsent(key, created);
+			if( h == null ) h = created;
+		}
+		return h;
+	}
+	private static void increment(ConcurrentHashMap<String, LongAdder> map, String key) {
+		LongAdder n = map.get(key);
+		if( n == null ) {
+			LongAdder created = new LongAdder();
+			n = map.putIfAbsent(key, created);
+			if( n == null ) n = created;
+		}
+		n.increment();
+	}
+	private static Map<String, Long> sums(Map<String, LongAdder> map) {
+		Map<String, Long> result = new TreeMap<>();
+		for( Map.Entry<String, LongAdder> e : map.entrySet() ) result.put(e.getKey(), e.getValue().sum());
+		return result;
+	}
+	private static String type(Exception e) {
+		return e == null ? "null" : e.getClass().getSimpleName();
+	}
+
+	void error(Exception e) { increment(errors, type(e)); }
+
+	// a failed request is tried again, or not because the RetryBudget was empty
+	void retried(Exception e) { increment(retries, type(e)); }
+	void retryDenied() { retriesDenied.increment(); }
+
+	// a second request is sent for a slow selection, it answers first, or it is not sent because the budget was empty
+	void hedged() { hedges.increment(); }
+	void hedgeWon() { hedgeWins.increment(); }
+	void hedgeDenied() { hedgesDenied.increment(); }
+
+	// the CircuitBreaker changed state
+	void circuitChanged(CircuitBreaker.State state) { increment(circuitChanges, state.name()); }
+
+	void parsed(long nanos) { phases.get("parse").record(nanos); }
+
+	// a request is done, successfully or not
+	void record(Timing timing) {
+		phases.get("queue").record(timing.queue);
+		phases.get("connect").record(timing.connect);
+		phases.get("write").record(timing.write);
+		phases.get("read").record(timing.read);
+		requestBytes.add(timing.requestBytes);
+		requestWireBytes.add(timing.requestWireBytes);
+		responseBytes.add(timing.responseBytes);
+		responseWireBytes.add(timing.responseWireBytes);
+		compress.add(timing.compress);
+		decompress.add(timing.decompress);
+		for( Callback<Timing> listener : listeners ) {
+			try {
+				listener.onValue(timing);
+			} catch( RuntimeException e ) {
+				// a broken listener must not break the request
+			}
+		}
+	}
+
+	// a call to select() is answered, possibly with the default option
+	void selected(String agentCode, long start, SelectResponse response) {
+		histogram(selects, agentCode).record(System.nanoTime() - start);
+		if( response != null && response.getError() != null ) increment(fallbacks, type(response.getError()));
+	}
+
+	// a call to reward() is answered
+	void rewarded(String goalCode, long start) {
+		histogram(rewards, goalCode).record(System.nanoTime() - start);
+	}
+
+	/** Call listener.onValue(Timing) each time an HTTP request is done; it runs on the request's thread, so it should be quick. */
+	public void addListener(Callback<Timing> listener) { listeners.add(listener); }
+	public void removeListener(Callback<Timing> listener) { listeners.remove(listener); }
+
+	/** Return the Histogram of one phase of every HTTP request: "queue", "connect", "write", "read", or "parse" (reading and parsing the response). */
+	public Histogram getPhase(String phase) { return phases.get(phase); }
+	/** Return the latency of select(), as seen by the caller, by agent code. */
+	public Map<String, Histogram> getSelectLatency() { return new TreeMap<>(selects); }
+	/** Return the latency of reward(), as seen by the caller, by goal code. */
+	public Map<String, Histogram> getRewardLatency() { return new TreeMap<>(rewards); }
+	/** Return the number of failed requests, by the type of error (eg "SocketTimeoutException", "JSONException"). */
+	public Map<String, Long> getErrors() { return sums(errors); }
+	/** Return the number of selections that fell back to the default option, by the type of error that caused it. */
+	public Map<String, Long> getFallbacks() { return sums(fallbacks); }
+	/** Return the number of retries, by the type of error that caused them. */
+	public Map<String, Long> getRetries() { return sums(retries); }
+	/** Return the number of retries that were not made, because the RetryBudget was empty. */
+	public long getRetriesDenied() { return retriesDenied.sum(); }
+	/** Return the number of hedged requests: second requests sent for slow selections. */
+	public long getHedges() { return hedges.sum(); }
+	/** Return the number of hedged requests that answered before the first request. */
+	public long getHedgeWins() { return hedgeWins.sum(); }
+	/** Return the number of hedged requests that were not sent, because the hedge budget was empty. */
+	public long getHedgesDenied() { return hedgesDenied.sum(); }
+	/** Return the state of the CircuitBreaker, or null if the instance has none. */
+	public CircuitBreaker.State getCircuitState() {
+		CircuitBreaker breaker = circuitBreaker;
+		return breaker == null ? null : breaker.getState();
+	}
+	/** Return the number of times the CircuitBreaker entered each state. */
+	public Map<String, Long> getCircuitChanges() { return sums(circuitChanges); }
+	/** Return the number of requests that failed straight away, because the CircuitBreaker was open. */
+	public long getShortCircuited() {
+		CircuitBreaker breaker = circuitBreaker;
+		return breaker == null ? 0 : breaker.getShortCircuited();
+	}
+	/** Return the total size (in bytes) of all request bodies, before compression. */
+	public long getRequestBytes() { return requestBytes.sum(); }
+	/** Return the total size (in bytes) of all request bodies as they were sent. */
+	public long getRequestWireBytes() { return requestWireBytes.sum(); }
+	/** Return the total size (in bytes) of all response bodies, after decompression. */
+	public long getResponseBytes() { return responseBytes.sum(); }
+	/** Return the total size (in bytes) of all response bodies as they were received. */
+	public long getResponseWireBytes() { return responseWireBytes.sum(); }
+	/** Return the number of bytes that compression saved, in both directions. */
+	public long getBytesSaved() { return getRequestBytes() - getRequestWireBytes() + getResponseBytes() - getResponseWireBytes(); }
+	/** Return the total time (in milliseconds) spent compressing request bodies. */
+	public double getCompressTime() { return compress.sum() / 1e6; }
+	/** Return the total time (in milliseconds) spent decompressing response bodies. */
+	public double getDecompressTime() { return decompress.sum() / 1e6; }
+	/** Return the number of HTTP requests on the network right now. */
+	public int getInFlight() { return Math.max(0, inFlight.get() - queued.get()); }
+	/** Return the number of HTTP requests waiting for a free thread right now. */
+	public int getQueued() { return queued.get(); }
+
+	public String toString() {
+		return "{ \"inFlight\": " + getInFlight() + ", \"queued\": " + getQueued()
+			+ ", \"phases\": " + json(phases) + ", \"select\": " + json(getSelectLatency()) + ", \"reward\": " + json(getRewardLatency())
+			+ ", \"errors\": " + json(getErrors()) + ", \"fallbacks\": " + json(getFallbacks())
+			+ ", \"retries\": " + json(getRetries()) + ", \"retriesDenied\": " + getRetriesDenied()
+			+ ", \"circuit\": " + (getCircuitState() == null ? "null" : "\"" + getCircuitState() + "\"") + ", \"shortCircuited\": " + getShortCircuited()
+			+ ", \"hedges\": " + getHedges() + ", \"hedgeWins\": " + getHedgeWins() + ", \"hedgesDenied\": " + getHedgesDenied()
+			+ ", \"bytesSaved\": " + getBytesSaved() + ", \"compress\": " + getCompressTime() + ", \"decompress\": " + getDecompressTime() + " }";
+	}
+	private static String json(Map<String, ?> map) {
+		StringBuilder sb = new StringBuilder("{");
+		for( Map.Entry<String, ?> e : map.entrySet() ) {
+			if( sb.length() > 1 ) sb.append(",");
+			sb.append(" \"").append(e.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\": ").append(e.getValue());
+		}
+		return sb.append(" }").toString();
+	}
+
+	/** Return all the metrics in the Prometheus text exposition format (version 0.0.4), with durations in seconds. */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		gauge(sb, "conductrics_requests_in_flight", "HTTP requests on the network.", getInFlight());
+		gauge(sb, "conductrics_requests_queued", "HTTP requests waiting for a free thread.", getQueued());
+		histograms(sb, "conductrics_request_phase_seconds", "Duration of each phase of an HTTP request.", "phase", phases);
+		histograms(sb, "conductrics_select_seconds", "Latency of select(), by agent.", "agent", getSelectLatency());
+		histograms(sb, "conductrics_reward_seconds", "Latency of reward(), by goal.", "goal", getRewardLatency());
+		counters(sb, "conductrics_errors_total", "Failed requests, by type of error.", "type", getErrors());
+		header(sb, "conductrics_body_bytes_total", "Size of request and response bodies, before compression (body) and as sent or received (wire).", "counter");
+		sb.append("conductrics_body_bytes_total{direction=\"request\",form=\"body\"} ").append(getRequestBytes()).append('\n');
+		sb.append("conductrics_body_bytes_total{direction=\"request\",form=\"wire\"} ").append(getRequestWireBytes()).append('\n');
+		sb.append("conductrics_body_bytes_total{direction=\"response\",form=\"body\"} ").append(getResponseBytes()).append('\n');
+		sb.append("conductrics_body_bytes_total{direction=\"response\",form=\"wire\"} ").append(getResponseWireBytes()).append('\n');
+		header(sb, "conductrics_compression_seconds_total", "Time spent compressing request bodies and decompressing response bodies.", "counter");
+		sb.append("conductrics_compression_seconds_total{op=\"compress\"} ").append(compress.sum() / 1e9).append('\n');
+		sb.append("conductrics_compression_seconds_total{op=\"decompress\"} ").append(decompress.sum() / 1e9).append('\n');
+		counters(sb, "conductrics_retries_total", "Failed requests that were tried again, by type of error.", "type", getRetries());
+		header(sb, "conductrics_retries_denied_total", "Failed requests that were not tried again, because the retry budget was empty.", "counter");
+		sb.append("conductrics_retries_denied_total ").append(getRetriesDenied()).append('\n');
+		header(sb, "conductrics_hedges_total", "Second requests for slow selections: sent, answered first (won), or not sent for lack of budget (denied).", "counter");
+		sb.append("conductrics_hedges_total{outcome=\"sent\"} ").append(getHedges()).append('\n');
+		sb.append("conductrics_hedges_total{outcome=\"won\"} ").append(getHedgeWins()).append('\n');
+		sb.append("conductrics_hedges_total{outcome=\"denied\"} ").append(getHedgesDenied()).append('\n');
+		CircuitBreaker.State circuit = getCircuitState();
+		if( circuit != null ) {
+			header(sb, "conductrics_circuit_state", "State of the circuit breaker, 1 for the current state.", "gauge");
+			for( CircuitBreaker.State state : CircuitBreaker.State.values() ) {
+				sb.append("conductrics_circuit_state{state=\"").append(state).append("\"} ").append(state == circuit ? 1 : 0).append('\n');
+			}
+			counters(sb, "conductrics_circuit_changes_total", "Times the circuit breaker entered each state.", "state", getCircuitChanges());
+			header(sb, "conductrics_short_circuited_total", "Requests that failed straight away, because the circuit breaker was open.", "counter");
+			sb.append("conductrics_short_circuited_total ").append(getShortCircuited()).append('\n');
+		}
+		counters(sb, "conductrics_select_fallbacks_total", "Selections that fell back to the default option, by type of error.", "reason", getFallbacks());
+		return sb.toString();
+	}
+	private static String label(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	private static void gauge(StringBuilder sb, String name, String help, long value) {
+		header(sb, name, help, "gauge");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	private static void counters(StringBuilder sb, String name, String help, String label, Map<String, Long> values) {
+		header(sb, name, help, "counter");
+		for( Map.Entry<String, Long> e : values.entrySet() ) {
+			sb.append(name).append('{').append(label).append("=\"").append(label(e.getKey())).append("\"} ").append(e.getValue()).append('\n');
+		}
+	}
+	private static void histograms(StringBuilder sb, String name, String help, String label, Map<String, Histogram> values) {
+		header(sb, name, help, "histogram");
+		for( Map.Entry<String, Histogram> e : values.entrySet() ) {
+			String l = label + "=\"" + label(e.getKey()) + "\"";
+			long[] counts = e.getValue().getCounts();
+			long cumulative = 0;
+			for( int i = 0; i < counts.length; i++ ) {
+				cumulative += counts[i];
+				String le = i < BUCKETS.length ? Double.toString(BUCKETS[i] / 1000) : "+Inf";
+				sb.append(name).append("_bucket{").append(l).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+			}
+			sb.append(name).append("_sum{").append(l).append("} ").append(e.getValue().getSum() / 1000).append('\n');
+			sb.append(name).append("_count{").append(l).append("} ").append(cumulative).append('\n');
+		}
+	}
+}
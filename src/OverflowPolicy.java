@@ -0,0 +1,8 @@
+package com.conductrics;
+
+/** Indicates what happens to a new request when the request queue is full. @see ClientOptions.setOverflowPolicy */
+public enum OverflowPolicy {
+	Reject,
+	DropOldest,
+	Block
+}
@@ -0,0 +1,49 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A PrometheusExporter serves Metrics in the Prometheus text format, at /metrics, using the HTTP server built into the JDK.
+ * <pre>
+ * PrometheusExporter exporter = new PrometheusExporter(api.getMetrics(), 9400);
+ * ...
+ * exporter.stop();
+ * </pre>
+ * Android has no com.sun.net.httpserver: there, serve Metrics.toPrometheus() some other way.
+ */
+public class PrometheusExporter {
+	private final HttpServer server;
+
+	/** Start serving the given Metrics on all interfaces, on the given port. */
+	public PrometheusExporter(Metrics metrics, int port) throws IOException {
+		this(metrics, new InetSocketAddress(port));
+	}
+	/** Start serving the given Metrics on the given address. */
+	public PrometheusExporter(final Metrics metrics, InetSocketAddress address) throws IOException {
+		if( metrics == null ) throw new IllegalArgumentException("metrics");
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+	}
+
+	/** Return the address the exporter is listening on, useful when it was started on port 0. */
+	public InetSocketAddress getAddress() { return server.getAddress(); }
+
+	/** Stop serving, and release the port. */
+	public void stop() { server.stop(0); }
+}
@@ -2,107 +2,187 @@ package com.conductrics;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
 
-/** RequestOptions contains the configuration to be used when calling select(), reward(), or exec(). */
+/** RequestOptions contains the configuration to be used when calling select(), reward(), or exec().
+ * A RequestOptions is thread-safe: each call takes a snapshot of it, so changes made while requests are in flight only apply to later calls.
+ * Change it with its setters: changes made to the maps and lists returned by getInputs() and getTraits() may not be seen by later calls.
+ * A RequestOptions made by RequestTemplate.forSession() can not be changed, its setters throw UnsupportedOperationException.
+ */
 public class RequestOptions {
-	private HashMap<String, String> params = new HashMap<String, String>(); // Ultimately, a set of RequestOptions will become parameters to an HTTP request
-	private HashMap<String, String> input = new HashMap<String, String>();
+	private HashMap<String, String> params; // Ultimately, a set of RequestOptions will become parameters to an HTTP request
+	private HashMap<String, String> input;
 	private int _timeout = 2000; // Timeout is just an internal option, and not sent with the params
-	private String defaultOption = "A";
-	private HashMap<String, String> defaultOptions = new HashMap<String, String>();
-	private HashMap<String, List<String>> allowed = new HashMap<>();
+	private HashMap<String, String> defaultOptions;
+	private HashMap<String, List<String>> allowed;
+	private List<String> traits;
 	private boolean offline = false;
 	private boolean provisional = false;
 	private boolean shouldConfirm = false;
+	private final RequestTemplate template; // null, unless this is a view of a template
+	private final String session; // only for a view, the params of the template have no session
+	long deadline = 0; // only for the snapshot of one call: the System.nanoTime() when its deadline passes, 0 if it has none
+	private RequestTemplate snapshots; // guarded by this, the options as they are now, for snapshot(); null once they change
 
 	/** Construct a new RequestOptions, and set the session identifier at the same time. */
 	public RequestOptions(String sessionId) {
+		params = new HashMap<String, String>();
+		input = new HashMap<String, String>();
+		defaultOptions = new HashMap<String, String>();
+		allowed = new HashMap<>();
+		traits = new LinkedList<String>();
+		template = null;
+		session = null;
+		params.put("session", newSession(sessionId));
+	}
+	private RequestOptions() {
+		template = null;
+		session = null;
+	}
+	// a copy that shares nothing with this one, for a RequestTemplate
+	synchronized RequestOptions copy() {
+		RequestOptions copy = new RequestOptions();
+		copy.params = new HashMap<String, String>(getParams());
+		copy.input = new HashMap<String, String>(input);
+		copy.defaultOptions = new HashMap<String, String>(defaultOptions);
+		copy.allowed = new HashMap<>();
+		for( Map.Entry<String, List<String>> entry : allowed.entrySet() ) {
+			copy.allowed.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<String>(entry.getValue())));
+		}
+		copy.traits = Collections.unmodifiableList(new ArrayList<String>(traits));
+		copy._timeout = _timeout;
+		copy.offline = offline;
+		copy.provisional = provisional;
+		copy.shouldConfirm = shouldConfirm;
+		return copy;
+	}
+	// a view of template with its own session: it shares everything else with the template, so it allocates nothing
+	RequestOptions(RequestTemplate template, String sessionId) {
+		RequestOptions base = template.base;
+		params = base.params;
+		input = base.input;
+		defaultOptions = base.defaultOptions;
+		allowed = base.allowed;
+		traits = base.traits;
+		_timeout = base._timeout;
+		offline = base.offline;
+		provisional = base.provisional;
+		shouldConfirm = base.shouldConfirm;
+		this.template = template;
+		session = newSession(sessionId);
+	}
+	private static String newSession(String sessionId) {
 		if( sessionId == null || sessionId.length() == 0 ) {
 			// Start with a default random session id
 			sessionId = java.util.UUID.randomUUID().toString();
 		}
-		params.put("session", sessionId);
+		return sessionId;
+	}
+	private void mutable() {
+		if( template != null ) throw new UnsupportedOperationException("the RequestOptions of a RequestTemplate can not be changed");
+	}
+	private void modify() {
+		mutable();
+		snapshots = null;
+	}
+
+	/** Return an immutable RequestTemplate of these options (all but the session), to derive many RequestOptions from. */
+	public RequestTemplate toTemplate() { return new RequestTemplate(this); }
+	// the template this is a view of, or null
+	RequestTemplate template() { return template; }
+	// an immutable copy of the options as they are now, for one call; a view of a template is immutable already, but each call gets its own, for its deadline.
+	// The template is only copied and encoded again after a setter changed the options.
+	synchronized RequestOptions snapshot() {
+		if( template != null ) return new RequestOptions(template, session);
+		if( snapshots == null ) snapshots = new RequestTemplate(this);
+		return snapshots.forSession(getSession());
 	}
 
 	/** Return the current provisional status of these requests. */
-	public boolean getProvisional() { return provisional; }
+	public synchronized boolean getProvisional() { return provisional; }
 	/** Set the current provisional status of these requests.
 	 * Requests made with provisional status enabled must later be confirmed, using setConfirm(true).
 	 */
-	public RequestOptions setProvisional(boolean value) {
+	public synchronized RequestOptions setProvisional(boolean value) {
+		modify();
 		provisional = value;
 		if( value ) shouldConfirm = false;
 		return this;
 	}
 
 	/** Return whether this request will confirm a prior provisional selection. */
-	public boolean getConfirm() { return shouldConfirm; }
+	public synchronized boolean getConfirm() { return shouldConfirm; }
 	/** Set whether this request will confirm a prior provisional selection. */
-	public RequestOptions setConfirm(boolean value) {
+	public synchronized RequestOptions setConfirm(boolean value) {
+		modify();
 		shouldConfirm = value;
 		if( value ) provisional = false;
 		return this;
 	}
 
 	/** Return the session identifier for this request. */
-	public String getSession() { return params.get("session"); }
+	public synchronized String getSession() { return template != null ? session : params.get("session"); }
 	/** Set the session identifier String that will be used for this request. */
-	public RequestOptions setSession(String s) {
+	public synchronized RequestOptions setSession(String s) {
+		mutable(); // the session is not part of the template of snapshot()
 		params.put("session", s);
 		return this;
 	}
 
 	/** Return the value to send as the 'User-Agent' of the client. */
-	public String getUserAgent() { return params.get("ua"); }
+	public synchronized String getUserAgent() { return params.get("ua"); }
 	/** Set the 'User-Agent' of the client. */
-	public RequestOptions setUserAgent(String s) {
+	public synchronized RequestOptions setUserAgent(String s) {
+		modify();
 		params.put("ua", s);
 		return this;
 	}
 
 	/** Return the set of all "input" values that will be sent with the request.
-	 * These "inputs" are used in rules in the Conductrics Console.  */
-	public HashMap<String, String> getInputs() { return input; }
+	 * These "inputs" are used in rules in the Conductrics Console.
+	 * For the RequestOptions of a RequestTemplate, this is a copy.  */
+	public synchronized HashMap<String, String> getInputs() { return template != null ? new HashMap<String, String>(input) : input; }
 	/** Returns one "input" value to be sent with the request.  */
-	public String getInput(String key) { return input.get(key); }
+	public synchronized String getInput(String key) { return input.get(key); }
 	/** Set one "input" value, to be sent along with the request.
 	 * These "input" values can be used in Targeting rules, on the Agent screen, of the Console.
 	 */
-	public RequestOptions setInput(String key, String val) {
+	public synchronized RequestOptions setInput(String key, String val) {
+		modify();
 		input.put(key, val);
 		return this;
 	}
+	/** Set a number input, with 6 decimals (eg "1.500000") in every locale. */
 	public RequestOptions setInput(String key, double value) {
-		input.put(key, String.format("%f", value));
-		return this;
+		return setInput(key, String.format(Locale.ROOT, "%f", value));
 	}
 	public RequestOptions setInput(String key, long value) {
-		input.put(key, String.format("%d", value));
-		return this;
+		return setInput(key, Long.toString(value));
 	}
 	public RequestOptions setInput(String key, boolean value) {
-		input.put(key, value ? "true" : "false");
-		return this;
+		return setInput(key, value ? "true" : "false");
 	}
 
-	private List<String> traits = new LinkedList<String>();
-
 	/** Return an array of all traits that will be applied to this request. */
-	public List<String> getTraits() {
+	public synchronized List<String> getTraits() {
 		return traits;
 	}
-	public RequestOptions setTrait(String group, String trait) {
+	public synchronized RequestOptions setTrait(String group, String trait) {
+		modify();
 		traits.add(group + ":" + trait);
 		return this;
 	}
 	public RequestOptions setTrait(String group, long trait) {
-		return setTrait(group, String.format("%d", trait));
+		return setTrait(group, Long.toString(trait));
 	}
 	public RequestOptions setTrait(String group, double value) {
-		return setTrait(group, String.format("%f", value));
+		return setTrait(group, String.format(Locale.ROOT, "%f", value));
 	}
 	public RequestOptions setTrait(String group, boolean value) {
 		return setTrait(group, (value ? "true" : "false"));
@@ -111,21 +191,32 @@ public class RequestOptions {
 	/** Return (a copy of) all the URL parameters to be sent with the request.
 	 * Included will be values like "traits", "ua", and "session", which are set elsewhere in RequestOptions.
 	 */
-	public Map<String, String> getParams() { return new HashMap<String, String>(params); }
+	public synchronized Map<String, String> getParams() {
+		HashMap<String, String> copy = new HashMap<String, String>(params);
+		if( template != null ) copy.put("session", session);
+		return copy;
+	}
+	// the URL parameters themselves, for serializing a request without a copy
+	Map<String, String> params() { return params; }
 	/** Set one custom URL parameter to be sent.
 	 * A useful example: setParam("debug", "true"), will cause a resulting ExecResponse.getLog() to be full of messages.
 	 * @param key The name of the URL parameter
 	 * @param value Any string value, the resulting "&key=value" will be appended to the request.
 	 */
-	public RequestOptions setParam(String key, String value) {
+	public synchronized RequestOptions setParam(String key, String value) {
+		modify();
 		params.put(key, value);
 		return this;
 	}
 
 	/** Return the current timeout, in milliseconds. */
-	public int getTimeout() { return _timeout; }
-	/** Set the current timeout, in milliseconds. */
-	public RequestOptions setTimeout(int ms) {
+	public synchronized int getTimeout() { return _timeout; }
+	/** Set the current timeout, in milliseconds: the deadline of each call, counted from the call to select() or reward().
+	 * It covers waiting in the queue, connecting, sending, and reading and parsing the response; when it passes, the callback gets
+	 * the default option with a SocketTimeoutException, and the request is cancelled. 0 means no deadline.
+	 */
+	public synchronized RequestOptions setTimeout(int ms) {
+		modify();
 		_timeout = ms;
 		return this;
 	}
@@ -134,7 +225,7 @@ public class RequestOptions {
 	 * This value will be used for a SelectResponse.getCode() if any errors occur.
 	 * Default value is "A", if setDefault() has not called.
 	 */
-	public String getDefault(String agentCode) {
+	public synchronized String getDefault(String agentCode) {
 		if( defaultOptions.containsKey(agentCode) ) {
 			return defaultOptions.get(agentCode);
 		} else {
@@ -146,18 +237,20 @@ public class RequestOptions {
 	 * @param agentCode The code of the agent to apply the default to.
 	 * @param optionCode The code of the option to use if there is an error, eg "B".
 	 */
-	public RequestOptions setDefault(String agentCode, String optionCode) {
+	public synchronized RequestOptions setDefault(String agentCode, String optionCode) {
+		modify();
 		defaultOptions.put(agentCode, optionCode);
 		return this;
 	}
 
 	/** Get the current value of offline mode. */
-	public boolean getOffline() { return offline; }
+	public synchronized boolean getOffline() { return offline; }
 	/** Enable or disable "offline mode".
 	 * When in offline mode, no network requests are made.
 	 * All calls to select() return default variations.
 	 */
-	public RequestOptions setOffline(boolean value) {
+	public synchronized RequestOptions setOffline(boolean value) {
+		modify();
 		offline = value;
 		return this;
 	}
@@ -165,7 +258,7 @@ public class RequestOptions {
 	/** Get the (limited set of) variations allowed for an agent.
 	 * Can return null, which means all possible variations are allowed.
 	 */
-	public List<String> getAllowedVariations(String agentCode) {
+	public synchronized List<String> getAllowedVariations(String agentCode) {
 		return allowed.get(agentCode);
 	}
 	/** Set the allowed variations for an agent.
@@ -177,10 +270,22 @@ public class RequestOptions {
 	/** Set the allowed variations for an agent.
 	 * Will constrain future calls to select(). 
 	 */
-	public RequestOptions setAllowedVariations(String agentCode, List<String> variations) {
+	public synchronized RequestOptions setAllowedVariations(String agentCode, List<String> variations) {
+		modify();
 		if( variations.size() > 0 ) {
 			allowed.put(agentCode, variations);
 		}
 		return this;
 	}
+
+	/** Return a String that is the same for any two RequestOptions that would send the same request (apart from the commands).
+	 * Used to decide which requests can be combined into one.
+	 */
+	synchronized String getSignature() {
+		if( template != null ) return template.signature();
+		return new TreeMap<String, String>(params).toString()
+			+ new TreeMap<String, String>(input).toString()
+			+ traits.toString()
+			+ "|" + _timeout + "|" + offline + "|" + provisional + "|" + shouldConfirm;
+	}
 }
@@ -0,0 +1,38 @@
+package com.conductrics;
+
+/** A RequestTemplate is an immutable copy of a RequestOptions, for the options that many requests share (user agent, inputs, traits, defaults...),
+ * with their URL parameters and inputs serialized once, instead of on every request.
+ * forSession() derives the RequestOptions of one request cheaply: it shares everything with the template, apart from its session.
+ * A RequestTemplate is thread-safe, and the RequestOptions it derives can not be changed.
+ * <pre>
+ * RequestTemplate template = new RequestOptions(null).setUserAgent("my-app").setInput("country", "US").toTemplate();
+ * api.select( template.forSession(sessionId), "a-example", callback );
+ * </pre>
+ */
+public final class RequestTemplate {
+	final RequestOptions base; // never changed, its params have no session
+	final String query; // the encoded URL parameters, apart from the apikey and session
+	final byte[] inputs; // the serialized inputs part of a request body
+	private volatile String signature; // computed when first needed, by CommandBatcher
+
+	/** Construct a RequestTemplate from a copy of opts, so that later changes to opts do not change the template. The session of opts is not used. */
+	public RequestTemplate(RequestOptions opts) {
+		base = opts.copy();
+		base.params().remove("session");
+		query = RequestWriter.get().query(base.params(), base.getTraits());
+		inputs = RequestWriter.get().inputs(base.getInputs());
+	}
+
+	String signature() {
+		String s = signature;
+		if( s == null ) signature = s = base.getSignature();
+		return s;
+	}
+
+	/** Return the RequestOptions of a request for this session, with the options of this template.
+	 * @param sessionId The session identifier, or null for a new random session.
+	 */
+	public RequestOptions forSession(String sessionId) {
+		return new RequestOptions(this, sessionId);
+	}
+}
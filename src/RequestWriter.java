@@ -0,0 +1,289 @@
+package com.conductrics;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.json.JSONArray;
+
+/** A RequestWriter serializes the body and URL of an exec() request as UTF-8 (and compresses the body, if asked), into buffers that are re-used by each thread,
+ * so that the only allocations per request are the final byte[] body and the URL String.
+ */
+class RequestWriter extends Writer {
+	private static final int MAX_RETAINED = 64 * 1024; // don't keep a buffer that grew for one unusually large request
+	private static final ThreadLocal<RequestWriter> current = new ThreadLocal<RequestWriter>() {
+		@Override protected RequestWriter initialValue() { return new RequestWriter(); }
+	};
+
+	/** Return the RequestWriter of the current thread, ready to be written to. */
+	static RequestWriter get() {
+		RequestWriter w = current.get();
+		w.count = 0;
+		w.highSurrogate = 0;
+		w.url.setLength(0);
+		return w;
+	}
+
+	private byte[] buf = new byte[1024];
+	private int count = 0;
+	private char highSurrogate = 0; // the first half of a surrogate pair, waiting for the second
+	private final StringBuilder url = new StringBuilder(256);
+	private Deflater deflater; // created on the first gzip(), then re-used
+	private final CRC32 crc = new CRC32();
+
+	/** Serialize a request body: { "commands": [...], "inputs": {...} }, and return it as UTF-8 bytes. */
+	byte[] body(JSONArray commands, Map<String, String> inputs) {
+		writeCommands(commands);
+		writeInputs(inputs);
+		write('}');
+		return result();
+	}
+	/** Serialize a request body whose inputs were serialized once by inputs(), for a RequestTemplate. */
+	byte[] body(JSONArray commands, byte[] inputs) {
+		writeCommands(commands);
+		ensure(inputs.length);
+		System.arraycopy(inputs, 0, buf, count, inputs.length);
+		count += inputs.length;
+		write('}');
+		return result();
+	}
+	/** Serialize only the inputs part of a body (empty if there are none), to be given to body() for many requests. */
+	byte[] inputs(Map<String, String> inputs) {
+		writeInputs(inputs);
+		return result();
+	}
+
+	private void writeCommands(JSONArray commands) {
+		writeAscii("{\"commands\":");
+		if( commands == null ) {
+			writeAscii("[]");
+		} else {
+			commands.write(this);
+		}
+	}
+	private void writeInputs(Map<String, String> inputs) {
+		if( inputs != null && ! inputs.isEmpty() ) {
+			writeAscii(",\"inputs\":{");
+			boolean first = true;
+			for( Map.Entry<String, String> input : inputs.entrySet() ) {
+				if( input.getValue() == null ) continue; // like JSONObject, which leaves out null values
+				if( ! first ) write(',');
+				first = false;
+				quote(input.getKey());
+				write(':');
+				quote(input.getValue());
+			}
+			write('}');
+		}
+	}
+	private byte[] result() {
+		byte[] result = Arrays.copyOf(buf, count);
+		if( buf.length > MAX_RETAINED ) buf = new byte[1024];
+		return result;
+	}
+
+	/** Compress a request body into the gzip format (RFC 1952). */
+	byte[] gzip(byte[] data) {
+		if( deflater == null ) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // raw deflate, the gzip header and trailer are written here
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		count = 0;
+		ensure(10);
+		buf[count++] = (byte)0x1f; // magic
+		buf[count++] = (byte)0x8b;
+		buf[count++] = 8; // deflate
+		for( int i = 0; i < 7; i++ ) buf[count++] = 0; // no flags, no mtime, no extra flags, OS 0
+		while( ! deflater.finished() ) {
+			ensure(512);
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+		crc.reset();
+		crc.update(data, 0, data.length);
+		ensure(8);
+		writeIntLE((int)crc.getValue());
+		writeIntLE(data.length);
+		return result();
+	}
+	private void writeIntLE(int v) {
+		buf[count++] = (byte)v;
+		buf[count++] = (byte)(v >> 8);
+		buf[count++] = (byte)(v >> 16);
+		buf[count++] = (byte)(v >> 24);
+	}
+
+	/** Build a request URL: apiUrl?apikey=...&key=value..., with every value form-encoded as UTF-8. */
+	String url(String apiUrl, String apiKey, Map<String, String> params, List<String> traits) {
+		url.append(apiUrl).append("?apikey=").append(apiKey);
+		writeQuery(params, traits);
+		return urlResult();
+	}
+	/** Build a request URL from a session and the rest of the parameters, encoded once by query(), for a RequestTemplate. */
+	String url(String apiUrl, String apiKey, String session, String query) {
+		url.append(apiUrl).append("?apikey=").append(apiKey).append("&session=");
+		encode(session);
+		url.append(query);
+		return urlResult();
+	}
+	/** Encode only the parameters (&key=value...) of a URL, to be given to url() for many requests. */
+	String query(Map<String, String> params, List<String> traits) {
+		writeQuery(params, traits);
+		return urlResult();
+	}
+
+	private void writeQuery(Map<String, String> params, List<String> traits) {
+		for( Map.Entry<String, String> param : params.entrySet() ) {
+			if( param.getKey().equals("traits") && traits.size() > 0 ) continue; // replaced by the traits below
+			url.append('&').append(param.getKey()).append('=');
+			encode(param.getValue());
+		}
+		if( traits.size() > 0 ) {
+			url.append("&traits=");
+			boolean first = true;
+			for( String trait : traits ) {
+				if( ! first ) url.append("%2C");
+				first = false;
+				encode(trait);
+			}
+		}
+	}
+	private String urlResult() {
+		String result = url.toString();
+		if( url.capacity() > MAX_RETAINED ) {
+			url.setLength(0);
+			url.trimToSize();
+		}
+		return result;
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	// the same encoding as URLEncoder.encode(s, "utf-8"), without its intermediate copies
+	private void encode(String s) {
+		if( s == null ) {
+			url.append("null");
+			return;
+		}
+		for( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt(i);
+			if( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_' ) {
+				url.append(c);
+			} else if( c == ' ' ) {
+				url.append('+');
+			} else {
+				int cp = c;
+				if( Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)) ) {
+					cp = Character.toCodePoint(c, s.charAt(++i));
+				} else if( Character.isSurrogate(c) ) {
+					cp = '?'; // an unpaired surrogate can not be encoded
+				}
+				if( cp < 0x80 ) {
+					percent(cp);
+				} else if( cp < 0x800 ) {
+					percent(0xC0 | (cp >> 6));
+					percent(0x80 | (cp & 0x3F));
+				} else if( cp < 0x10000 ) {
+					percent(0xE0 | (cp >> 12));
+					percent(0x80 | ((cp >> 6) & 0x3F));
+					percent(0x80 | (cp & 0x3F));
+				} else {
+					percent(0xF0 | (cp >> 18));
+					percent(0x80 | ((cp >> 12) & 0x3F));
+					percent(0x80 | ((cp >> 6) & 0x3F));
+					percent(0x80 | (cp & 0x3F));
+				}
+			}
+		}
+	}
+	private void percent(int b) {
+		url.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+
+	// write a JSON string, escaped the same way as JSONObject.quote()
+	private void quote(String s) {
+		if( s == null ) {
+			writeAscii("null");
+			return;
+		}
+		write('"');
+		char prev = 0;
+		for( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt(i);
+			switch( c ) {
+				case '\\': case '"': write('\\'); write(c); break;
+				case '/': if( prev == '<' ) write('\\'); write(c); break;
+				case '\b': writeAscii("\\b"); break;
+				case '\t': writeAscii("\\t"); break;
+				case '\n': writeAscii("\\n"); break;
+				case '\f': writeAscii("\\f"); break;
+				case '\r': writeAscii("\\r"); break;
+				default:
+					if( c < 0x20 || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100) ) {
+						writeAscii("\\u");
+						write(HEX[(c >> 12) & 0xF]);
+						write(HEX[(c >> 8) & 0xF]);
+						write(HEX[(c >> 4) & 0xF]);
+						write(HEX[c & 0xF]);
+					} else {
+						write(c);
+					}
+			}
+			prev = c;
+		}
+		write('"');
+	}
+
+	private void ensure(int n) {
+		if( count + n > buf.length ) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+		}
+	}
+	private void writeAscii(String s) {
+		ensure(s.length());
+		for( int i = 0; i < s.length(); i++ ) buf[count++] = (byte)s.charAt(i);
+	}
+
+	// Writer, used by JSONArray.write(), encodes each char as UTF-8
+	@Override public void write(int ch) {
+		char c = (char)ch;
+		ensure(4);
+		if( highSurrogate != 0 ) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if( Character.isLowSurrogate(c) ) {
+				int cp = Character.toCodePoint(high, c);
+				buf[count++] = (byte)(0xF0 | (cp >> 18));
+				buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+				buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+				buf[count++] = (byte)(0x80 | (cp & 0x3F));
+				return;
+			}
+			buf[count++] = '?'; // an unpaired surrogate can not be encoded
+			ensure(4);
+		}
+		if( c < 0x80 ) {
+			buf[count++] = (byte)c;
+		} else if( c < 0x800 ) {
+			buf[count++] = (byte)(0xC0 | (c >> 6));
+			buf[count++] = (byte)(0x80 | (c & 0x3F));
+		} else if( Character.isHighSurrogate(c) ) {
+			highSurrogate = c;
+		} else if( Character.isLowSurrogate(c) ) {
+			buf[count++] = '?';
+		} else {
+			buf[count++] = (byte)(0xE0 | (c >> 12));
+			buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte)(0x80 | (c & 0x3F));
+		}
+	}
+	@Override public void write(char[] cbuf, int off, int len) {
+		for( int i = off; i < off + len; i++ ) write(cbuf[i]);
+	}
+	@Override public void write(String s, int off, int len) {
+		for( int i = off; i < off + len; i++ ) write(s.charAt(i));
+	}
+	@Override public void flush() { }
+	@Override public void close() { }
+}
@@ -0,0 +1,45 @@
+package com.conductrics;
+
+/** A RetryBudget limits retries (or hedged requests, see HedgePolicy) to a share of all requests, so that when the API is in trouble, they can not multiply the load on it.
+ * It is a bucket of tokens: each request adds ratio tokens (up to burst), and each retry takes one whole token, or is not made.
+ * Over time, at most ratio * requests + burst retries are made; in a healthy period the bucket fills up again.
+ * One RetryBudget may be shared by several RetryPolicy objects, to limit their retries together.
+ */
+public class RetryBudget {
+	private final double ratio;
+	private final double burst;
+	private double tokens;
+	private long denied = 0;
+
+	/** Construct a RetryBudget that starts full.
+	 * @param ratio The number of retries allowed per request, eg 0.1 for one retry per 10 requests.
+	 * @param burst The number of retries that can be made at once, by requests that saved up for them.
+	 */
+	public RetryBudget(double ratio, int burst) {
+		if( ratio < 0 ) throw new IllegalArgumentException("ratio");
+		if( burst < 1 ) throw new IllegalArgumentException("burst");
+		this.ratio = ratio;
+		this.burst = burst;
+		this.tokens = burst;
+	}
+
+	// a request was made
+	synchronized void deposit() {
+		tokens = Math.min(burst, tokens + ratio);
+	}
+	// return true if a retry can be made, and take its token
+	synchronized boolean withdraw() {
+		if( tokens >= 1 ) {
+			tokens -= 1;
+			return true;
+		}
+		denied++;
+		return false;
+	}
+
+	public double getRatio() { return ratio; }
+	/** Return the number of retries that could be made right now. */
+	public synchronized double getTokens() { return tokens; }
+	/** Return the number of retries that were not made, because the budget was empty. */
+	public synchronized long getDenied() { return denied; }
+}
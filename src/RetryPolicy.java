@@ -0,0 +1,99 @@
+package com.conductrics;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** A RetryPolicy decides which failed requests are tried again, and how long to wait before each new attempt.
+ * The wait grows exponentially from the base delay, up to the max delay, and is spread at random ("full jitter")
+ * so that clients which failed together do not all retry at the same moment.
+ * Retries never go past the timeout of the request (RequestOptions.setTimeout()), which covers all of its attempts,
+ * and they are limited to a share of all requests by a RetryBudget.
+ * <pre>
+ * new ClientOptions().setRetryPolicy( new RetryPolicy().setMaxAttempts(3).setBackoff(50, 1000) )
+ * </pre>
+ * Note that a reward whose response was lost (eg "Read timed out") may have been counted by the server already, and could be counted twice when retried.
+ */
+public class RetryPolicy {
+	private int maxAttempts = 3;
+	private int baseDelay = 50;
+	private int maxDelay = 1000;
+	private Set<Integer> retryableStatus = new HashSet<>(Arrays.asList(429, 502, 503, 504));
+	private RetryBudget budget = new RetryBudget(0.1, 10);
+
+	/** Construct a RetryPolicy with the default settings: 3 attempts, a backoff from 50ms to 1s, and a budget of one retry per 10 requests. */
+	public RetryPolicy() { }
+
+	/** Return the maximum number of attempts of each request, including the first one. */
+	public int getMaxAttempts() { return maxAttempts; }
+	/** Set the maximum number of attempts of each request, including the first one; 1 means failed requests are not retried. */
+	public RetryPolicy setMaxAttempts(int value) {
+		if( value < 1 ) throw new IllegalArgumentException("maxAttempts");
+		maxAttempts = value;
+		return this;
+	}
+
+	/** Return the delay (in milliseconds) before the first retry, before jitter. */
+	public int getBaseDelay() { return baseDelay; }
+	/** Return the longest delay (in milliseconds) between two attempts. */
+	public int getMaxDelay() { return maxDelay; }
+	/** Wait up to base milliseconds before the first retry, twice as long before the second, and so on, but never more than max milliseconds. */
+	public RetryPolicy setBackoff(int base, int max) {
+		if( base < 0 ) throw new IllegalArgumentException("base");
+		if( max < base ) throw new IllegalArgumentException("max");
+		baseDelay = base;
+		maxDelay = max;
+		return this;
+	}
+
+	/** Retry requests answered with one of these HTTP status codes. The default is 429, 502, 503 and 504. */
+	public RetryPolicy setRetryableStatus(int... codes) {
+		Set<Integer> set = new HashSet<>();
+		for( int code : codes ) set.add(code);
+		retryableStatus = set;
+		return this;
+	}
+
+	/** Return the RetryBudget shared by all requests using this policy, or null if retries are not limited. */
+	public RetryBudget getBudget() { return budget; }
+	/** Limit retries with a RetryBudget, null to allow every retry the policy permits. */
+	public RetryPolicy setBudget(RetryBudget value) {
+		budget = value;
+		return this;
+	}
+
+	/** Return true if a request that failed with this error may succeed when tried again.
+	 * By default: refused or timed out connections, connections closed by the server, and the retryable HTTP status codes.
+	 * Override this to retry other errors.
+	 */
+	public boolean isRetryable(Exception e) {
+		if( e instanceof HttpStatusException ) return retryableStatus.contains(((HttpStatusException)e).getStatus());
+		// SocketException includes ConnectException, "Connection reset" and "Unexpected end of file from server"
+		return e instanceof SocketException || e instanceof SocketTimeoutException;
+	}
+
+	/** Return how long (in milliseconds) to wait before the given retry (1 for the first retry): a random time between 0 and the backoff. */
+	public long getDelay(int retry) {
+		long backoff = maxDelay;
+		if( retry <= 30 ) backoff = Math.min(maxDelay, (long)baseDelay << (retry - 1));
+		return ThreadLocalRandom.current().nextLong(backoff + 1);
+	}
+
+	// the delay (in milliseconds) before the next attempt of a request whose attempt failed with e, or -1 if it must not be retried;
+	// deadline is the System.nanoTime() when its timeout passes, 0 if it has none
+	long retryDelay(int attempt, Exception e, long deadline, Metrics metrics) {
+		if( attempt >= maxAttempts || ! isRetryable(e) ) return -1;
+		long delay = getDelay(attempt);
+		if( deadline != 0 && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadline >= 0 ) return -1;
+		RetryBudget b = budget;
+		if( b != null && ! b.withdraw() ) {
+			metrics.retryDenied();
+			return -1;
+		}
+		return delay;
+	}
+}
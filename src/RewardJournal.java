@@ -0,0 +1,521 @@
+package com.conductrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** A RewardJournal keeps every reward on disk until the API has accepted it, so that rewards are not lost while the API is down,
+ * or when the process stops: rewards that failed (or were still pending) are sent again later, by a background flusher,
+ * in batches, until they succeed. This gives at-least-once delivery: a reward whose response was lost can be counted twice.
+ * <p>
+ * The journal is an append-only file, memory-mapped so that an append is a few memory writes, without a system call.
+ * Each record holds the session, goal code, value and time of one reward, and a state byte that is set last, when the record is complete,
+ * and changed to acknowledged when the API accepted the reward. When every record is acknowledged the journal starts over,
+ * and when it fills up it is compacted, by a thread of its own: the pending records are copied to a new file, which replaces the old one.
+ * A reward that arrives while the journal is full is not journaled, it is only sent once.
+ * Writes reach the disk when the operating system flushes them, or at each flush of the journal, so they survive the process crashing,
+ * but the last few may not survive the machine crashing.
+ * <pre>
+ * RewardJournal journal = new RewardJournal(new File("/var/lib/myapp/rewards.journal"));
+ * Conductrics api = new Conductrics(apiUrl, apiKey, new ClientOptions().setRewardJournal(journal));
+ * </pre>
+ * Only the session, goal code and value are sent again, not the other RequestOptions of the original reward.
+ */
+public class RewardJournal {
+	private static final int MAGIC = 0x434E444A; // "CNDJ"
+	private static final int VERSION = 1;
+	private static final int HEADER = 8; // magic, version
+	private static final byte END = 0, PENDING = 1, ACKED = 2;
+	private static final int FIXED = 8 + 8 + 8 + 2 + 2; // seq, timestamp, value, and the length of both strings
+
+	// one reward in the journal, not acknowledged yet
+	static class Record {
+		final long seq;
+		final long timestamp;
+		final String session;
+		final String goal;
+		final double value; // NaN if the reward had no value
+		int offset; // of its state byte in the file
+		boolean alone = false; // refused by the API with others: sent by itself next time, to find out which one it refuses
+		Record(long seq, long timestamp, String session, String goal, double value) {
+			this.seq = seq;
+			this.timestamp = timestamp;
+			this.session = session;
+			this.goal = goal;
+			this.value = value;
+		}
+		// its size in the file, in bytes
+		int size() { return 5 + FIXED + session.getBytes(StandardCharsets.UTF_8).length + goal.getBytes(StandardCharsets.UTF_8).length; }
+	}
+
+	private final File file;
+	private final int capacity;
+	private FileChannel channel; // guarded by this, replaced by compact()
+	private MappedByteBuffer map; // guarded by this, replaced by compact()
+	private final ExecutorService disk; // compacts the journal, and writes it to disk, off the threads of the callers and of the flusher
+
+	// guarded by this
+	private int end = HEADER; // where the next record goes
+	private long nextSeq = 1;
+	private final Map<Long, Record> pending = new LinkedHashMap<>(); // by seq, oldest first
+	private final Set<Long> inFlight = new HashSet<>(); // sent, and not answered yet
+	private long pendingBytes = 0; // the size of the pending records in the file
+	private long acked = 0, replayed = 0, dropped = 0, rejected = 0, refused = 0;
+	private int flushInterval = 5000;
+	private int batchSize = 100;
+	private long maxAge = TimeUnit.DAYS.toMillis(7);
+	private boolean compacting = false; // a compaction is running on the disk thread
+	private boolean closed = false;
+
+	// the flusher, see start()
+	private ScheduledExecutorService scheduler;
+	private CommandBatcher.Sender sender;
+	private Logger logger;
+	private ScheduledFuture<?> flush; // guarded by this
+
+	/** Open (or create) a journal of 1 MB, enough for about 10,000 pending rewards. */
+	public RewardJournal(File file) throws IOException {
+		this(file, 1 << 20);
+	}
+	/** Open (or create) a journal of the given size in bytes; an existing journal keeps its size if it is larger.
+	 * The rewards it holds that were never acknowledged will be sent again once it is given to a Conductrics instance.
+	 */
+	public RewardJournal(File file, int capacity) throws IOException {
+		if( capacity < 1024 ) throw new IllegalArgumentException("capacity");
+		this.file = file;
+		ThreadPoolExecutor thread = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "conductrics-journal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		thread.allowCoreThreadTimeOut(true);
+		disk = thread;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		boolean created = channel.size() < HEADER;
+		this.capacity = (int)Math.max(capacity, Math.min(channel.size(), Integer.MAX_VALUE));
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+		if( created ) {
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.put(HEADER, END);
+		} else if( map.getInt(0) != MAGIC || map.getInt(4) != VERSION ) {
+			channel.close();
+			throw new IOException("not a reward journal: " + file);
+		} else {
+			recover();
+		}
+	}
+
+	// read the records left by a previous process
+	private void recover() {
+		int p = HEADER;
+		while( p + 5 + FIXED <= capacity ) {
+			byte state = map.get(p);
+			if( state != PENDING && state != ACKED ) break; // END, or the record being written when the process stopped
+			int length = map.getInt(p + 1);
+			if( length < FIXED || p + 5 + length > capacity ) break;
+			Record r = read(p, length);
+			if( r == null ) break;
+			if( state == PENDING ) {
+				pending.put(r.seq, r);
+				pendingBytes += 5 + length;
+			}
+			nextSeq = Math.max(nextSeq, r.seq + 1);
+			p += 5 + length;
+		}
+		end = p;
+		if( end < capacity ) map.put(end, END);
+	}
+	private Record read(int p, int length) {
+		ByteBuffer b = map.duplicate();
+		b.position(p + 5);
+		long seq = b.getLong();
+		long timestamp = b.getLong();
+		double value = b.getDouble();
+		int n = b.getShort() & 0xFFFF;
+		if( FIXED + n > length ) return null;
+		byte[] session = new byte[n];
+		b.get(session);
+		int m = b.getShort() & 0xFFFF;
+		if( FIXED + n + m != length ) return null;
+		byte[] goal = new byte[m];
+		b.get(goal);
+		Record r = new Record(seq, timestamp, new String(session, StandardCharsets.UTF_8), new String(goal, StandardCharsets.UTF_8), value);
+		r.offset = p;
+		return r;
+	}
+	// write a record at p, followed by an END marker, and mark it PENDING once it is complete
+	private static void write(ByteBuffer map, int p, Record r, byte[] session, byte[] goal) {
+		int length = FIXED + session.length + goal.length;
+		ByteBuffer b = map.duplicate();
+		b.position(p + 5);
+		b.putLong(r.seq);
+		b.putLong(r.timestamp);
+		b.putDouble(r.value);
+		b.putShort((short)session.length);
+		b.put(session);
+		b.putShort((short)goal.length);
+		b.put(goal);
+		map.putInt(p + 1, length);
+		if( p + 5 + length < map.capacity() ) map.put(p + 5 + length, END);
+		map.put(p, PENDING);
+	}
+
+	/** Return the file of the journal. */
+	public File getFile() { return file; }
+	/** Return the size of the journal in bytes. */
+	public int getCapacity() { return capacity; }
+	/** Return the number of rewards not acknowledged yet, including the ones being sent. */
+	public synchronized int getPending() { return pending.size(); }
+	/** Return the number of rewards acknowledged by the API. */
+	public synchronized long getAcked() { return acked; }
+	/** Return the number of rewards sent again by the flusher, and acknowledged. */
+	public synchronized long getReplayed() { return replayed; }
+	/** Return the number of rewards given up on, because they were older than the maximum age. */
+	public synchronized long getDropped() { return dropped; }
+	/** Return the number of rewards that could not be journaled, because the journal was full of pending rewards. They were still sent once. */
+	public synchronized long getRejected() { return rejected; }
+	/** Return the number of rewards given up on, because the API refused them (eg an unknown goal): an HTTP 4xx status other than 429, which sending them again would not change. */
+	public synchronized long getRefused() { return refused; }
+
+	/** Return how long (in milliseconds) the flusher waits, after a failure, before sending the pending rewards again. */
+	public synchronized int getFlushInterval() { return flushInterval; }
+	/** Wait this many milliseconds after a failure before sending the pending rewards again. The default is 5000. */
+	public synchronized RewardJournal setFlushInterval(int ms) {
+		if( ms < 1 ) throw new IllegalArgumentException("ms");
+		flushInterval = ms;
+		return this;
+	}
+	/** Return the maximum number of pending rewards sent again at once. */
+	public synchronized int getBatchSize() { return batchSize; }
+	/** Send at most this many pending rewards at once, grouped in one request per session. The default is 100. */
+	public synchronized RewardJournal setBatchSize(int value) {
+		if( value < 1 ) throw new IllegalArgumentException("batchSize");
+		batchSize = value;
+		return this;
+	}
+	/** Return the age (in milliseconds) after which a pending reward is given up on, 0 if never. */
+	public synchronized long getMaxAge() { return maxAge; }
+	/** Give up on pending rewards older than this many milliseconds, 0 to never give up. The default is 7 days. */
+	public synchronized RewardJournal setMaxAge(long ms) {
+		if( ms < 0 ) throw new IllegalArgumentException("ms");
+		maxAge = ms;
+		return this;
+	}
+
+	// Journal a reward about to be sent, and return its sequence number, or -1 if the journal is full.
+	synchronized long append(String session, String goal, Double value) {
+		byte[] s = session.getBytes(StandardCharsets.UTF_8);
+		byte[] g = goal.getBytes(StandardCharsets.UTF_8);
+		if( s.length > 0xFFFF || g.length > 0xFFFF ) {
+			rejected++;
+			return -1;
+		}
+		int need = 5 + FIXED + s.length + g.length;
+		// once the journal is 3/4 full, compact it in the background, if that frees at least a quarter of it
+		int used = end - HEADER;
+		if( used + need > (capacity - HEADER) * 3 / 4 && pendingBytes < used * 3 / 4 ) compactLater();
+		if( end + need > capacity ) {
+			rejected++; // the caller does not wait for the compaction
+			return -1;
+		}
+		Record r = new Record(nextSeq++, System.currentTimeMillis(), session, goal, value == null ? Double.NaN : value);
+		write(map, end, r, s, g);
+		r.offset = end;
+		end += need;
+		pending.put(r.seq, r);
+		pendingBytes += need;
+		inFlight.add(r.seq);
+		return r.seq;
+	}
+
+	// The API accepted a reward.
+	synchronized void ack(long seq) {
+		inFlight.remove(seq);
+		Record r = pending.remove(seq);
+		if( r == null ) return;
+		pendingBytes -= r.size();
+		map.put(r.offset, ACKED);
+		acked++;
+		if( pending.isEmpty() ) {
+			// nothing left to keep, start over
+			end = HEADER;
+			map.put(HEADER, END);
+		}
+	}
+
+	// A reward could not be sent (error is why, or null), it is sent again by the flusher, after the rewards that have not failed yet.
+	void release(long seq, Exception error) {
+		synchronized( this ) {
+			inFlight.remove(seq);
+			Record r = pending.remove(seq);
+			if( r != null ) {
+				// it may have been refused because of another reward sent with it: next time, it goes alone
+				if( isRefusal(error) ) r.alone = true;
+				pending.put(seq, r); // to the back of the line, so that it does not hold up newer rewards
+			}
+		}
+		schedule(flushInterval);
+	}
+
+	// The API refused a reward that was sent alone, and would refuse it again: it is given up on.
+	private synchronized void refuse(long seq) {
+		inFlight.remove(seq);
+		Record r = pending.remove(seq);
+		if( r == null ) return;
+		pendingBytes -= r.size();
+		map.put(r.offset, ACKED);
+		refused++;
+		if( pending.isEmpty() ) {
+			end = HEADER;
+			map.put(HEADER, END);
+		}
+	}
+
+	// Return true if the API refused a reward, so that sending it again would fail again.
+	static boolean isRefusal(Exception e) {
+		if( ! (e instanceof HttpStatusException) ) return false;
+		int status = ((HttpStatusException)e).getStatus();
+		return status >= 400 && status < 500 && status != 429;
+	}
+
+	private synchronized void compactLater() {
+		if( compacting || closed ) return;
+		compacting = true;
+		try {
+			disk.execute(new Runnable() {
+				public void run() { compact(); }
+			});
+		} catch( RejectedExecutionException e ) {
+			compacting = false; // closed
+		}
+	}
+
+	// Copy the pending records to a new file, which replaces this one: a crash leaves either the old file or the new one.
+	// Runs on the disk thread: the bulk of the copy is written and forced without the lock, so that append() does not wait for it.
+	private void compact() {
+		List<Record> records;
+		synchronized( this ) {
+			records = new ArrayList<>(pending.values());
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		Map<Long, Integer> offsets = new LinkedHashMap<>(); // by seq
+		int p = HEADER;
+		FileChannel copyChannel = null;
+		MappedByteBuffer copy;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			copyChannel = raf.getChannel();
+			raf.setLength(0);
+			copy = copyChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			copy.putInt(0, MAGIC);
+			copy.putInt(4, VERSION);
+			for( Record r : records ) {
+				byte[] s = r.session.getBytes(StandardCharsets.UTF_8);
+				byte[] g = r.goal.getBytes(StandardCharsets.UTF_8);
+				write(copy, p, r, s, g);
+				offsets.put(r.seq, p);
+				p += 5 + FIXED + s.length + g.length;
+			}
+			if( p < capacity ) copy.put(p, END);
+			copy.force();
+		} catch( IOException e ) {
+			abandon(copyChannel, tmp, e);
+			return;
+		}
+		synchronized( this ) {
+			if( closed ) {
+				abandon(copyChannel, tmp, null);
+				return;
+			}
+			// the records that were acknowledged meanwhile, and appended meanwhile (those fit: the copy holds less than the old file)
+			for( Record r : records ) {
+				if( ! pending.containsKey(r.seq) ) copy.put(offsets.get(r.seq), ACKED);
+			}
+			for( Record r : pending.values() ) {
+				if( offsets.containsKey(r.seq) ) continue;
+				byte[] s = r.session.getBytes(StandardCharsets.UTF_8);
+				byte[] g = r.goal.getBytes(StandardCharsets.UTF_8);
+				write(copy, p, r, s, g);
+				offsets.put(r.seq, p);
+				p += 5 + FIXED + s.length + g.length;
+			}
+			if( pending.isEmpty() ) {
+				p = HEADER;
+				copy.put(HEADER, END);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch( IOException e ) {
+				abandon(copyChannel, tmp, e);
+				return;
+			}
+			try {
+				channel.close();
+			} catch( IOException e ) { }
+			// the new mapping stays valid after the rename, it is the same file
+			channel = copyChannel;
+			map = copy;
+			for( Record r : pending.values() ) r.offset = offsets.get(r.seq);
+			end = p;
+			compacting = false;
+		}
+	}
+	// keep using the old file
+	private void abandon(FileChannel copyChannel, File tmp, IOException e) {
+		try {
+			if( copyChannel != null ) copyChannel.close();
+		} catch( IOException x ) { }
+		tmp.delete();
+		if( e != null ) log("Reward journal could not be compacted: " + e);
+		synchronized( this ) {
+			compacting = false;
+		}
+	}
+	private void log(String line) {
+		if( logger != null && logger.isEnabled(LogLevel.Warn) ) logger.log(LogLevel.Warn, line);
+	}
+
+	// Start sending the pending rewards with sender, now and after each failure.
+	synchronized void start(ScheduledExecutorService scheduler, CommandBatcher.Sender sender, Logger logger) {
+		this.scheduler = scheduler;
+		this.sender = sender;
+		this.logger = logger;
+		if( ! pending.isEmpty() ) schedule(0);
+	}
+
+	private synchronized void schedule(long delay) {
+		if( scheduler == null || flush != null ) return;
+		try {
+			flush = scheduler.schedule(new Runnable() {
+				public void run() {
+					synchronized( RewardJournal.this ) {
+						flush = null;
+					}
+					replay();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch( RejectedExecutionException e ) {
+			// shut down, the rewards stay in the journal for the next process
+		}
+	}
+
+	// Send one batch of the pending rewards that are not being sent already, one request per session.
+	private void replay() {
+		Map<String, List<Record>> sessions = new LinkedHashMap<>();
+		synchronized( this ) {
+			long oldest = maxAge > 0 ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+			int n = 0;
+			Iterator<Record> it = pending.values().iterator();
+			while( it.hasNext() && n < batchSize ) {
+				Record r = it.next();
+				if( inFlight.contains(r.seq) ) continue;
+				if( r.timestamp < oldest ) {
+					it.remove();
+					pendingBytes -= r.size();
+					map.put(r.offset, ACKED);
+					dropped++;
+					continue;
+				}
+				inFlight.add(r.seq);
+				String key = r.alone ? r.session + "\u0000" + r.seq : r.session; // a request of its own
+				List<Record> list = sessions.get(key);
+				if( list == null ) {
+					list = new ArrayList<>();
+					sessions.put(key, list);
+				}
+				list.add(r);
+				n++;
+			}
+		}
+		forceLater(); // before the rewards are sent again, on the disk thread rather than the timer thread
+		for( Map.Entry<String, List<Record>> e : sessions.entrySet() ) {
+			final List<Record> records = e.getValue();
+			JSONArray commands = new JSONArray();
+			for( Record r : records ) {
+				JSONObject command = new JSONObject().put("g", r.goal);
+				if( ! Double.isNaN(r.value) ) command.put("v", r.value);
+				commands.put(command);
+			}
+			sender.send(new RequestOptions(records.get(0).session), commands, new Callback<ExecResponse>() {
+				public void onValue(ExecResponse response) {
+					Exception error = response == null ? new Exception("response is null") : response.getError();
+					if( error == null ) {
+						synchronized( RewardJournal.this ) {
+							for( Record r : records ) ack(r.seq);
+							replayed += records.size();
+						}
+						if( hasUnsent() ) schedule(0);
+					} else if( isRefusal(error) && records.size() == 1 ) {
+						log("Reward journal gave up on a reward refused by the API (goal " + records.get(0).goal + "): " + error);
+						refuse(records.get(0).seq);
+						if( hasUnsent() ) schedule(0);
+					} else {
+						log("Reward journal could not send " + records.size() + " rewards, retrying in " + getFlushInterval() + "ms: " + error);
+						for( Record r : records ) release(r.seq, error);
+					}
+				}
+			}, true); // on the timer thread
+		}
+	}
+	private synchronized boolean hasUnsent() {
+		return pending.size() > inFlight.size();
+	}
+
+	/** Write the journal to disk now. */
+	public synchronized void force() { map.force(); }
+	// write the journal to disk on the disk thread, without holding the lock meanwhile
+	private void forceLater() {
+		try {
+			disk.execute(new Runnable() {
+				public void run() {
+					MappedByteBuffer m;
+					synchronized( RewardJournal.this ) {
+						if( closed ) return;
+						m = map;
+					}
+					m.force();
+				}
+			});
+		} catch( RejectedExecutionException e ) {
+			// closed, close() wrote it
+		}
+	}
+
+	/** Stop sending pending rewards, write the journal to disk, and close it. Its pending rewards will be sent by the next process that opens it. */
+	public synchronized void close() throws IOException {
+		if( flush != null ) flush.cancel(false);
+		scheduler = null;
+		closed = true;
+		disk.shutdown(); // a compaction that is running gives up
+		map.force();
+		channel.close();
+	}
+}
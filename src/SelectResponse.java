@@ -21,6 +21,7 @@ public class SelectResponse {
 	private Status s = Status.Unknown;
 	private HashMap<String, String> meta;
 	private ExecResponse execResponse;
+	private boolean stale = false;
 	SelectResponse(String A, String C, String P) {
 		if( A == null ) throw new IllegalArgumentException("A");
 		if( C == null ) throw new IllegalArgumentException("C");
@@ -59,11 +60,7 @@ public class SelectResponse {
 				String key = keys.next();
 				meta.put(key, md.getString(key));
 			}
-			switch( item.getString("s") ) {
-				case "ok": s = Status.Confirmed; break;
-				case "p": s = Status.Provisional; break;
-				default: s = Status.Unknown; break;
-			}
+			s = getStatus( item.getString("s") );
 			return;
 		} catch( JSONException err ) {
 			setError(new Exception(err.getLocalizedMessage()));
@@ -71,6 +68,27 @@ public class SelectResponse {
 			setError( err );
 		}
 	}
+	SelectResponse(String A, String C, String P, String S, HashMap<String, String> md, ExecResponse source, String defaultOption) { // the fields of one item, as read by ExecResponse.read()
+		if( A == null ) throw new IllegalArgumentException("A");
+		execResponse = source;
+		a = A;
+		c = C != null ? C : defaultOption;
+		p = getPolicy(P != null ? P : "x");
+		s = getStatus(S);
+		meta = md != null ? md : new HashMap<String, String>();
+		String missing = C == null ? "c" : P == null ? "p" : S == null ? "s" : md == null ? "md" : null;
+		if( missing != null ) setError(new Exception("JSONObject[\"" + missing + "\"] not found."));
+	}
+	SelectResponse(SelectResponse source, boolean stale) { // a copy of an earlier selection, served again from a cache
+		a = source.a;
+		c = source.c;
+		p = source.p;
+		s = source.s;
+		meta = source.meta;
+		execResponse = source.execResponse;
+		error = source.error;
+		this.stale = stale;
+	}
 	/** Return the agent code that made this selection. */
 	public String getAgent() { return a; }
 	/** Return the option code selected by this agent. */
@@ -91,6 +109,37 @@ public class SelectResponse {
 		}
 	}
 
+	private static String getPolicyCode(Policy p) {
+		switch( p ) {
+			case None: return "x";
+			case Paused: return "p";
+			case Random: return "r";
+			case Fixed: return "f";
+			case Adaptive: return "a";
+			case Control: return "c";
+			case Sticky: return "s";
+			case Bot: return "b";
+			default: return "";
+		}
+	}
+	private static Status getStatus(String s) {
+		if( s == null ) return Status.Unknown;
+		switch( s ) {
+			case "ok": return Status.Confirmed;
+			case "p": return Status.Provisional;
+			default: return Status.Unknown;
+		}
+	}
+
+	JSONObject toJSONObject() {
+		return new JSONObject()
+			.put("a", a)
+			.put("c", c)
+			.put("p", getPolicyCode(p))
+			.put("s", s == Status.Confirmed ? "ok" : s == Status.Provisional ? "p" : "")
+			.put("md", new JSONObject(meta));
+	}
+
 	/** Return the policy used to make this selection. */
 	public Policy getPolicy() { return p; }
 
@@ -105,6 +154,11 @@ public class SelectResponse {
 	/** Return a JSON-compatible description of this selection (without meta-data). */
 	public String toString() { return "{ \"agentCode\": \""+a+"\", \"optionCode\": \""+c+"\", \"policy\": \""+p+"\" }"; }
 
+	/** Return true if this selection was served from the cache after it expired, while a fresh one is requested in the background.
+	 * @see ClientOptions.setStaleWhileRevalidate
+	 */
+	public boolean isStale() { return stale; }
+
 	/** Return the underlying ExecResponse from which this SelectResponse was extracted. */
 	public ExecResponse getExecResponse() { return execResponse; }
 
@@ -0,0 +1,118 @@
+package com.conductrics;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/** A SelectionCache keeps recent selections in memory, by session and agent code,
+ * so that repeated calls to select() for a returning session can be answered without a request.
+ * Entries expire after a fixed time, and the least recently used entries are evicted when the cache is full.
+ * Provisional selections, and selections that failed, are never cached.
+ * With stale-while-revalidate, an expired selection can still be served (marked as stale) for a while, as it is refreshed.
+ */
+public class SelectionCache {
+	private final int maxEntries;
+	private final long ttl; // nanoseconds
+	private final long maxStale; // nanoseconds
+	private final Set<String> refreshing = new HashSet<>();
+	private long hits = 0;
+	private long staleHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	private static class Entry {
+		final SelectResponse response;
+		final long expires;
+		Entry(SelectResponse response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+
+	// access-ordered, so that the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Entry> entries;
+
+	SelectionCache(int maxEntries, int ttl, int maxStale) {
+		this.maxEntries = maxEntries;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.maxStale = TimeUnit.MILLISECONDS.toNanos(maxStale);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<String, SelectionCache.Entry> eldest) {
+				if( size() > SelectionCache.this.maxEntries ) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static String key(String session, String agentCode) {
+		return session + "\u0000" + agentCode;
+	}
+
+	/** Return the cached selection for an agent in this session, or null if there is none that can be used.
+	 * An expired selection that may still be served is returned as a copy, for which isStale() is true.
+	 * @param allowed The variations allowed for this request, a cached selection outside of these is not used.
+	 */
+	synchronized SelectResponse get(String session, String agentCode, List<String> allowed) {
+		String key = key(session, agentCode);
+		Entry entry = entries.get(key);
+		long age = entry == null ? 0 : System.nanoTime() - entry.expires;
+		if( entry != null && age > maxStale ) {
+			entries.remove(key);
+			evictions++;
+			entry = null;
+		}
+		if( entry == null || (allowed != null && ! allowed.contains(entry.response.getCode())) ) {
+			misses++;
+			return null;
+		}
+		if( age > 0 ) {
+			staleHits++;
+			return new SelectResponse(entry.response, true);
+		}
+		hits++;
+		return entry.response;
+	}
+
+	/** Mark a selection as being refreshed; returns false if a refresh is already under way. */
+	synchronized boolean beginRefresh(String session, String agentCode) {
+		return refreshing.add(key(session, agentCode));
+	}
+	/** Mark the refresh of a selection as done, whether it succeeded or not. */
+	synchronized void endRefresh(String session, String agentCode) {
+		refreshing.remove(key(session, agentCode));
+	}
+
+	/** Remember a selection, if it can be re-used. */
+	synchronized void put(String session, String agentCode, SelectResponse response) {
+		if( response == null || response.getError() != null || response.getStatus() == Status.Provisional ) return;
+		entries.put(key(session, agentCode), new Entry(response, System.nanoTime() + ttl));
+	}
+
+	/** Forget any selection for an agent in this session. */
+	synchronized void remove(String session, String agentCode) {
+		entries.remove(key(session, agentCode));
+	}
+
+	/** Forget all selections. */
+	public synchronized void clear() { entries.clear(); }
+
+	/** Return the number of selections currently cached. */
+	public synchronized int size() { return entries.size(); }
+	/** Return the number of calls to select() that were answered from the cache. */
+	public synchronized long getHits() { return hits; }
+	/** Return the number of calls to select() that were answered with an expired (stale) selection from the cache. */
+	public synchronized long getStaleHits() { return staleHits; }
+	/** Return the number of calls to select() that found nothing (valid) in the cache. */
+	public synchronized long getMisses() { return misses; }
+	/** Return the number of selections removed because they expired, or because the cache was full. */
+	public synchronized long getEvictions() { return evictions; }
+	public synchronized String toString() {
+		return "{ \"size\": " + entries.size() + ", \"hits\": " + hits + ", \"staleHits\": " + staleHits + ", \"misses\": " + misses + ", \"evictions\": " + evictions + " }";
+	}
+}
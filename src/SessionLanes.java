@@ -0,0 +1,140 @@
+package com.conductrics;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+
+/** SessionLanes sends the requests of each session one at a time, in the order they were made, while requests of different sessions still run in parallel.
+ * Each session with a request waiting or in flight has its own Lane: the next request of a lane is sent only once the previous one was answered.
+ * A Lane lives only while it has requests, and is only locked by the requests of its own session.
+ */
+class SessionLanes {
+	private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+	/** Return a Sender that sends through sender, in the lane of each request's session. */
+	CommandBatcher.Sender through(final CommandBatcher.Sender sender) {
+		return new CommandBatcher.Sender() {
+			public Transport.Cancellable send(RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback, boolean background) {
+				if( opts == null || opts.getOffline() ) return sender.send(opts, commands, callback, background); // answered at once, nothing to wait for
+				Entry entry = new Entry(sender, opts, commands, callback);
+				while( true ) {
+					Lane lane = lanes.get(opts.getSession());
+					if( lane == null ) {
+						Lane created = new Lane(opts.getSession());
+						lane = lanes.putIfAbsent(created.session, created);
+						if( lane == null ) lane = created;
+					}
+					if( lane.add(entry) ) break;
+					// that lane emptied and closed meanwhile, the session gets a new one
+				}
+				entry.lane.pump(background);
+				return entry;
+			}
+		};
+	}
+
+	/** Return the number of sessions that have requests waiting or in flight. */
+	int size() { return lanes.size(); }
+
+	// one request, waiting in its lane or sent
+	private static class Entry implements Transport.Cancellable {
+		final CommandBatcher.Sender sender;
+		final RequestOptions opts;
+		final JSONArray commands;
+		final Callback<ExecResponse> callback;
+		Lane lane;
+		volatile Transport.Cancellable request; // once sent
+		volatile boolean cancelled = false;
+		Entry(CommandBatcher.Sender sender, RequestOptions opts, JSONArray commands, Callback<ExecResponse> callback) {
+			this.sender = sender;
+			this.opts = opts;
+			this.commands = commands;
+			this.callback = callback;
+		}
+		void start(boolean background) {
+			request = sender.send(opts, commands, new Callback<ExecResponse>() {
+				public void onValue(ExecResponse response) {
+					try {
+						if( callback != null ) callback.onValue(response);
+					} finally {
+						lane.finished();
+					}
+				}
+			}, background);
+			if( cancelled ) request.cancel(); // cancelled while it was being sent
+		}
+		public void cancel() {
+			cancelled = true;
+			if( lane.remove(this) ) {
+				if( callback != null ) callback.onValue( new ExecResponse( new CancellationException("request cancelled") ));
+				lane.pump(true); // maybe on the timer thread, when the deadline of the call passed
+				return;
+			}
+			Transport.Cancellable r = request;
+			if( r != null ) r.cancel();
+		}
+	}
+
+	// the requests of one session, in order
+	private class Lane {
+		final String session;
+		private final ArrayDeque<Entry> waiting = new ArrayDeque<>(); // guarded by this
+		private boolean busy = false; // a request is in flight
+		private boolean pumping = false; // a thread is in pump(), sending the next request
+		private boolean closed = false; // removed from lanes, takes no more requests
+
+		Lane(String session) {
+			this.session = session;
+		}
+
+		synchronized boolean add(Entry entry) {
+			if( closed ) return false;
+			entry.lane = this;
+			waiting.add(entry);
+			return true;
+		}
+
+		synchronized boolean remove(Entry entry) {
+			return waiting.remove(entry);
+		}
+
+		void finished() {
+			synchronized( this ) {
+				busy = false;
+			}
+			pump(true); // on the thread that answered the previous request
+		}
+
+		// send the next request, unless one is in flight; a loop rather than recursion, for requests that are answered while being sent
+		// background is false only on the thread of the caller who made the request
+		void pump(boolean background) {
+			while( true ) {
+				Entry next;
+				synchronized( this ) {
+					if( busy || pumping || closed ) return;
+					next = waiting.poll();
+					if( next == null ) {
+						closed = true;
+						lanes.remove(session, this);
+						return;
+					}
+					busy = pumping = true;
+				}
+				try {
+					next.start(background);
+				} catch( RuntimeException e ) {
+					synchronized( this ) {
+						busy = false;
+					}
+					if( next.callback != null ) next.callback.onValue( new ExecResponse(e) );
+				} finally {
+					synchronized( this ) {
+						pumping = false;
+					}
+				}
+			}
+		}
+	}
+}
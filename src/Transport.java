@@ -0,0 +1,51 @@
+package com.conductrics;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/** A Transport sends the HTTP requests of a Conductrics instance, so that another HTTP client (or an in-process fake) can be used.
+ * By default, requests are sent with HttpURLConnection, by a pool of threads; ClientOptions.setTransport() replaces that.
+ * Everything else still works the same with any Transport: batching, coalescing, the selection cache, deadlines, retries,
+ * hedging, the circuit breaker, ordered sessions, compression of request and response bodies, and the metrics.
+ * <pre>
+ * new ClientOptions().setTransport( new Transport() {
+ *   public Transport.Cancellable send(String method, String url, Map&lt;String, String&gt; headers, byte[] body, long deadline, Transport.Listener listener) {
+ *     ...
+ *   }
+ * })
+ * </pre>
+ * A Transport is shared by all the calls of an instance, so it must be thread-safe; send() should not block.
+ */
+public interface Transport {
+
+	/** A request that is queued or in flight, and can be aborted. */
+	public static interface Cancellable {
+		/** Abort the request; unless it was already answered, its Listener gets a CancellationException. */
+		public void cancel();
+	}
+
+	/** Receives the outcome of one request: exactly one call, to onResponse() or to onError(), on any thread. */
+	public static interface Listener {
+		/** The server answered with a status below 400.
+		 * @param body The response body, as it was received: read it before onResponse() returns, the Transport may release the connection then.
+		 * @param contentEncoding The Content-Encoding of the response, eg "gzip" (which is decompressed for the Transport), or null.
+		 */
+		public void onResponse(InputStream body, String contentEncoding);
+		/** The request failed.
+		 * @param e An HttpStatusException if the server answered with a status of 400 or above, a SocketTimeoutException if the deadline passed,
+		 * a CancellationException after cancel(), or any other Exception (eg an IOException) if there was no response.
+		 */
+		public void onError(Exception e);
+	}
+
+	/** Send one request, and return at once; the outcome is given to the listener.
+	 * @param method The HTTP method, eg "POST".
+	 * @param url The absolute URL of the request. It holds the API key, so it should not be logged as is.
+	 * @param headers The request headers, eg content-type, and content-encoding if the body is compressed.
+	 * @param body The request body, or null for none.
+	 * @param deadline The System.nanoTime() by which the request must be answered (or fail with a SocketTimeoutException), 0 if it has no deadline.
+	 * @param listener Will be given the response or the error.
+	 * @return A handle to abort the request.
+	 */
+	public Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, Listener listener);
+}
@@ -0,0 +1,380 @@
+package com.conductrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** The default Transport: each request is sent with a blocking HttpURLConnection, by a thread of the executor of the instance.
+ * Requests wait for a free thread in a bounded queue (see ClientOptions.setMaxQueueSize() and setOverflowPolicy()), then for a connection from the ConnectionPool.
+ * It only sends each request once, as it is given: like any other Transport, it is wrapped in a ManagedTransport, for retries, compression, and metrics;
+ * a retry comes back through its queue, but does not wait for room in it.
+ */
+class UrlConnectionTransport implements Transport {
+	private static final byte[] EMPTY_BODY = new byte[0];
+
+	// each instance owns the executor that runs its (blocking) HTTP requests
+	private Executor executor;
+	private boolean ownsExecutor;
+	// requests that were given to the executor, oldest first, for OverflowPolicy.DropOldest (otherwise unused);
+	// it may still hold runners that started or were dropped: removing one from the middle is a linear scan, so they are skipped, and trimmed once they reach the head
+	private Deque<RequestRunner> queue = new ConcurrentLinkedDeque<>();
+	private boolean dropOldest; // requests are tracked in the queue
+	private Semaphore queueSlots; // null if the queue is unbounded
+	private OverflowPolicy overflowPolicy;
+	private int queueTimeout;
+	private AtomicInteger depth;
+	final AtomicLong shed = new AtomicLong();
+	final AtomicLong expired = new AtomicLong();
+	private ConnectionPool pool;
+	private Logger logger;
+
+	UrlConnectionTransport(ClientOptions options, Metrics metrics, ConnectionPool pool) {
+		this.pool = pool;
+		logger = options.getLogger();
+		depth = metrics.queued;
+		if( options.getMaxQueueSize() > 0 ) {
+			queueSlots = new Semaphore(options.getMaxQueueSize());
+		}
+		overflowPolicy = options.getOverflowPolicy();
+		dropOldest = queueSlots != null && overflowPolicy == OverflowPolicy.DropOldest;
+		queueTimeout = options.getQueueTimeout();
+		Executor virtual = null;
+		if( options.getExecutor() == null && options.getVirtualThreads() ) {
+			virtual = newVirtualThreadExecutor();
+			if( virtual == null ) Conductrics.log(logger, LogLevel.Warn, "Virtual threads are not available on this platform (requires Java 21), using a pool of " + options.getMaxThreads() + " threads");
+		}
+		if( options.getExecutor() != null ) {
+			executor = options.getExecutor();
+			ownsExecutor = false;
+		} else if( virtual != null ) {
+			executor = virtual;
+			ownsExecutor = true;
+		} else {
+			// core == max, so that all the threads are actually used before requests start to queue
+			int threads = options.getMaxThreads();
+			ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "conductrics-http-" + count.incrementAndGet());
+				}
+			});
+			threadPool.allowCoreThreadTimeOut(true);
+			executor = threadPool;
+			ownsExecutor = true;
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21+, so it is looked up at runtime; null if it does not exist
+	private static Executor newVirtualThreadExecutor() {
+		try {
+			return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch( ReflectiveOperationException e ) {
+			return null;
+		}
+	}
+
+	// runs the requests
+	Executor executor() { return executor; }
+
+	void shutdown() {
+		if( ownsExecutor && executor instanceof ExecutorService ) {
+			((ExecutorService)executor).shutdown();
+		}
+	}
+
+	// Make room for one more request in the queue, according to the overflow policy;
+	// a request sent by a thread of the instance (a retry, a batch, a hedge...) only takes a free slot, it must not block the timer or a request thread.
+	private boolean admit(int timeout, boolean mayBlock) {
+		if( queueSlots == null || queueSlots.tryAcquire() ) return true;
+		switch( mayBlock ? overflowPolicy : OverflowPolicy.Reject ) {
+			case DropOldest:
+				try {
+					while( ! queueSlots.tryAcquire() ) {
+						RequestRunner oldest = queue.pollFirst();
+						if( oldest == null ) {
+							// the queue is being drained as we look, a slot will be free in a moment
+							if( queueSlots.tryAcquire(1, TimeUnit.MILLISECONDS) ) return true;
+						} else if( oldest.claim() ) {
+							dequeued();
+							shed.incrementAndGet();
+							Conductrics.log(logger, LogLevel.Warn, "Request queue full, dropping the oldest request");
+							oldest.error( new RejectedExecutionException("dropped from a full request queue") );
+						}
+					}
+					return true;
+				} catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case Block:
+				int wait = queueTimeout;
+				if( timeout > 0 && (wait <= 0 || timeout < wait) ) wait = timeout;
+				try {
+					if( wait <= 0 ) {
+						queueSlots.acquire();
+						return true;
+					}
+					if( queueSlots.tryAcquire(wait, TimeUnit.MILLISECONDS) ) return true;
+				} catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			default:
+				break;
+		}
+		shed.incrementAndGet();
+		Conductrics.log(logger, LogLevel.Warn, "Request queue full, rejecting request");
+		return false;
+	}
+	private void dequeued() {
+		depth.decrementAndGet();
+		if( queueSlots != null ) queueSlots.release();
+		if( dropOldest ) trim();
+	}
+	private void enqueued(RequestRunner runner) {
+		depth.incrementAndGet();
+		if( dropOldest ) queue.addLast(runner);
+	}
+	// Remove the runners at the head of the queue that were already claimed.
+	private void trim() {
+		RequestRunner head;
+		while( (head = queue.peekFirst()) != null && head.claimed.get() ) {
+			RequestRunner polled = queue.pollFirst();
+			if( polled != null && polled != head && ! polled.claimed.get() ) {
+				queue.offerFirst(polled); // another thread took the head first, this one is still waiting
+				return;
+			}
+		}
+	}
+
+	private class RequestRunner implements Runnable, Cancellable {
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final long queuedAt = System.nanoTime();
+		private long started; // when the request left the queue
+		private final long deadline; // when the timeout of the request passes; 0 if it has no timeout
+		private final Metrics.Timing timing; // filled in with the phases of this attempt
+		private final String method;
+		private final String url;
+		private byte[] body;
+		private final Map<String, String> headers;
+		private final Listener callback;
+		public RequestRunner(String method, String url, byte[] body, long deadline, Map<String, String> headers, Listener callback, Metrics.Timing timing) {
+			this.method = method.toUpperCase();
+			this.url = url;
+			this.body = body;
+			this.deadline = deadline;
+			this.headers = headers;
+			this.callback = callback;
+			this.timing = timing;
+		}
+
+		// the time left before the deadline, in milliseconds, for the socket timeouts of this request
+		private int remaining() {
+			if( deadline == 0 ) return 0;
+			return (int)Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+		}
+
+		// Only one of starting the request, or dropping it from the queue, can succeed.
+		boolean claim() { return claimed.compareAndSet(false, true); }
+
+		private volatile boolean cancelled = false;
+		private volatile HttpURLConnection conn;
+		// Abort this request: if it is still queued it never starts, otherwise its connection is closed.
+		public void cancel() {
+			if( claim() ) {
+				dequeued();
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			cancelled = true;
+			HttpURLConnection c = conn;
+			if( c != null ) c.disconnect();
+		}
+
+		private void error(Exception e) {
+			callback.onError(e);
+		}
+
+		@Override
+		public void run() {
+			if( ! claim() ) return; // dropped while it was queued
+			dequeued();
+			started = System.nanoTime();
+			timing.queue = started - queuedAt;
+			perform();
+		}
+
+		private void perform() {
+			if( cancelled ) {
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			if( deadline != 0 && started - deadline >= 0 ) {
+				// nobody is waiting for this result anymore
+				expired.incrementAndGet();
+				Conductrics.log(logger, LogLevel.Warn, "Request expired in queue("+method+" "+Conductrics.redact(url)+")");
+				error( new SocketTimeoutException("request expired in queue") );
+				return;
+			}
+			URL u;
+			if( url == null ) {
+				Conductrics.log(logger, LogLevel.Error, "HTTP RequestRunner url cannot be null, aborting request");
+				error( new Exception("invalid cannot be null") );
+				return;
+			}
+
+			if( method.equals("POST") && body == null ) body = EMPTY_BODY;
+
+			// Try to parse the given URL safely.
+			try {
+				u = new URL(url);
+			} catch( MalformedURLException e ) {
+				Conductrics.log(logger, LogLevel.Error, "MalformedURLException(url="+Conductrics.redact(url)+"): "+e.toString());
+				error( e );
+				return;
+			}
+
+			// Wait for a free connection to this host
+			ConnectionPool.Host slot;
+			try {
+				slot = pool.acquire(u, remaining());
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				error( e );
+				return;
+			}
+			if( cancelled ) {
+				pool.release(slot);
+				error( new CancellationException("request cancelled") );
+				return;
+			}
+			if( slot == null ) {
+				Conductrics.log(logger, LogLevel.Warn, "Connection pool exhausted("+method+" "+Conductrics.redact(url)+")");
+				error( new SocketTimeoutException("connection pool exhausted") );
+				return;
+			}
+			try {
+				send(u);
+			} finally {
+				pool.release(slot);
+			}
+		}
+
+		// Report an error, unless it was caused by cancel()
+		private void fail(Exception e) {
+			error( cancelled ? new CancellationException("request cancelled") : e );
+		}
+
+		private void send(URL u) {
+			HttpURLConnection conn;
+			try {
+				conn = (HttpURLConnection)u.openConnection();
+				this.conn = conn;
+				if( cancelled ) throw new IOException("cancelled");
+				pool.prepare(conn);
+				conn.setRequestMethod(method);
+				if( headers != null ) {
+					for( String key : headers.keySet() ) {
+						conn.setRequestProperty(key, headers.get(key));
+					}
+				}
+				if( deadline != 0 ) {
+					int wait = remaining(); // the earlier attempts may have used up part of the timeout
+					conn.setConnectTimeout(wait); // we shouldn't have to wait long just to get a socket
+					conn.setReadTimeout(wait); // we may have to wait for the server response though, once connected
+				}
+				conn.setUseCaches( false );
+				conn.setDoInput( true );
+				if( body != null ) {
+					conn.setDoOutput( true );
+					conn.setFixedLengthStreamingMode( body.length ); // sets content-length, and writes straight to the socket
+				}
+				conn.connect();
+				pool.connected(conn);
+				timing.connect = System.nanoTime() - started;
+			} catch( IOException e ) {
+				fail( e );
+				return;
+			}
+
+			try {
+				long t = System.nanoTime();
+				if( body != null ) {
+					OutputStream out = conn.getOutputStream();
+					out.write( body );
+					out.close();
+				}
+				timing.write = System.nanoTime() - t;
+			} catch( IOException e ) {
+				fail( e );
+				return;
+			}
+
+			InputStream in;
+			try {
+				long t = System.nanoTime();
+				int status = conn.getResponseCode();
+				timing.read = System.nanoTime() - t;
+				if( status >= 400 ) {
+					// drain the error body too, otherwise the connection can not be reused
+					ConnectionPool.drain( conn.getErrorStream() );
+					throw new HttpStatusException(status);
+				}
+				in = conn.getInputStream();
+			} catch( IOException e ) {
+				fail( e );
+				return;
+			}
+			// the body is parsed as it arrives, then whatever is left is drained so the connection can be reused
+			try {
+				callback.onResponse( in, conn.getContentEncoding() );
+			} finally {
+				ConnectionPool.drain( in );
+				this.conn = null; // done, a late cancel() must not close a connection that went back to the pool
+			}
+		}
+	}
+
+	public Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, Listener callback) {
+		// a ManagedTransport hands over the Timing of the attempt, to be filled in with its phases
+		ManagedTransport.Attempt attempt = callback instanceof ManagedTransport.Attempt ? (ManagedTransport.Attempt)callback : null;
+		Metrics.Timing timing = attempt != null ? attempt.timing() : new Metrics.Timing();
+		int timeout = 0; // how long a full queue may block the caller
+		if( deadline != 0 ) timeout = (int)Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+		if( ! admit(timeout, attempt == null || attempt.mayBlock()) ) {
+			callback.onError( new RejectedExecutionException("request queue full") );
+			return Conductrics.NOT_CANCELLABLE;
+		}
+		RequestRunner runner = new RequestRunner(method, url, body, deadline, headers, callback, timing);
+		enqueued(runner);
+		try {
+			executor.execute( runner );
+		} catch( RejectedExecutionException e ) {
+			if( runner.claim() ) {
+				dequeued();
+				runner.error( new Exception("threadpool shutdown") );
+			}
+		}
+		return runner;
+	}
+}
@@ -5,14 +5,28 @@ import java.util.Map;
 import java.util.LinkedList;
 
 import com.conductrics.Conductrics;
+import com.conductrics.ClientOptions;
 import com.conductrics.ExecResponse;
 import com.conductrics.SelectResponse;
 import com.conductrics.GoalResponse;
 import com.conductrics.RequestOptions;
+import com.conductrics.RequestTemplate;
 import com.conductrics.Callback;
 import com.conductrics.Policy;
 import com.conductrics.Status;
+import com.conductrics.OverflowPolicy;
+import com.conductrics.Logger;
+import com.conductrics.LogLevel;
+import com.conductrics.RetryPolicy;
+import com.conductrics.RetryBudget;
+import com.conductrics.HedgePolicy;
+import com.conductrics.CircuitBreaker;
+import com.conductrics.CircuitOpenException;
+import com.conductrics.RewardJournal;
+import com.conductrics.Transport;
+import com.conductrics.stub.StubServer;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -44,6 +58,32 @@ public class Test {
 		executor.execute(new FullSessionOfflineTest());
 		executor.execute(new ProvisionalRewardTest());
 		executor.execute(new ConditionsTest());
+		executor.execute(new ConnectionReuseTest());
+		executor.execute(new CustomExecutorTest());
+		executor.execute(new QueueOverflowTest());
+		executor.execute(new BlockingQueueTest());
+		executor.execute(new AsyncSelectTest());
+		executor.execute(new AsyncCancelTest());
+		executor.execute(new RewardBatchTest());
+		executor.execute(new SelectCoalescingTest());
+		executor.execute(new SelectionCacheTest());
+		executor.execute(new StaleWhileRevalidateTest());
+		executor.execute(new LoggerTest());
+		executor.execute(new MetricsTest());
+		executor.execute(new StubErrorTest());
+		executor.execute(new StubSlowBodyTest());
+		executor.execute(new GzipTest());
+		executor.execute(new RetryTest());
+		executor.execute(new RetryBudgetTest());
+		executor.execute(new HedgeTest());
+		executor.execute(new CircuitBreakerTest());
+		executor.execute(new DeadlineTest());
+		executor.execute(new RewardJournalTest());
+		executor.execute(new TemplateTest());
+		executor.execute(new ConcurrentOptionsTest());
+		executor.execute(new OrderedSessionsTest());
+		executor.execute(new HttpClientTest());
+		executor.execute(new TransportTest());
 	}
 
 	static void _assertEqual(String a, String b) throws AssertionError {
@@ -331,7 +371,7 @@ public class Test {
 						_assertEqual( outcome.getAgent(), "a-example");
 						_assertEqual( outcome.getCode(), "E" );
 						assert outcome.getPolicy() == Policy.None: "getPolicy() should be none";
-						_assertEqual( outcome.getError().getMessage(), "Read timed out" );
+						assert outcome.getError() instanceof java.net.SocketTimeoutException : "getError() should be a SocketTimeoutException";
 						finish(null);
 					} catch( AssertionError err ) {
 						finish(err);
@@ -636,4 +676,900 @@ public class Test {
 		}
 	}
 
+	static class ConnectionReuseTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse first = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert first.getError() == null : "getError() should be null";
+				SelectResponse second = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert second.getError() == null : "getError() should be null";
+				assert stub.getConnectionCount() == 1 : "second request should reuse the connection, not open " + stub.getConnectionCount();
+				// released just after the callback, once the rest of the body is drained
+				for( int i = 0; i < 50 && api.getConnectionPool().getActiveConnections() > 0; i++ ) Thread.sleep(10);
+				assert api.getConnectionPool().getActiveConnections() == 0 : "the connection should go back to the pool: " + api.getConnectionPool();
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class CustomExecutorTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			ThreadPoolExecutor requests = new ThreadPoolExecutor(1, 1, 100, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setExecutor(requests) );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse outcome = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert outcome.getError() == null : "getError() should be null";
+				assert requests.getTaskCount() == 1 : "request should run on the given executor";
+				api.shutdown();
+				assert ! requests.isShutdown() : "the given executor should still belong to the caller";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				requests.shutdown();
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class QueueOverflowTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setDelay(200).start();
+				api = new Conductrics( stub.getUrl(), "api-stub",
+					new ClientOptions().setMaxThreads(1).setMaxQueueSize(1).setOverflowPolicy(OverflowPolicy.Reject)
+				);
+				RequestOptions opts = new RequestOptions(null)
+					.setDefault("a-example", "Q");
+				// the first request is running, the second is queued, the third has no room
+				api.select( opts, "a-example", null );
+				Thread.sleep(50);
+				api.select( opts, "a-example", null );
+				SelectResponse outcome = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert outcome != null : "Outcome cannot be null";
+				_assertEqual( outcome.getCode(), "Q" );
+				_assertEqual( outcome.getError().getMessage(), "request queue full" );
+				assert api.getShedCount() == 1 : "getShedCount() should be 1";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class BlockingQueueTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setDelay(400).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions()
+					.setMaxThreads(1).setMaxQueueSize(1).setOverflowPolicy(OverflowPolicy.Block)
+					.setRewardBatching(10, 50)
+				);
+				RequestOptions opts = new RequestOptions(null).setDefault("a-example", "B");
+				// the first request is running, the second is queued
+				api.select( opts, "a-example", null );
+				Thread.sleep(50);
+				api.select( opts, "a-example", null );
+				// the batch is sent by the timer thread, which must not wait for room like a caller would
+				long start = System.nanoTime();
+				GoalResponse goal = api.rewardAsync( new RequestOptions(null), "g-example" ).get( 5, TimeUnit.SECONDS );
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assert goal.getError() != null : "the batched reward should be rejected";
+				_assertEqual( goal.getError().getMessage(), "request queue full" );
+				assert ms < 300 : "the batched reward should be rejected at once, not after " + ms + "ms";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class AsyncSelectTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse outcome = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert outcome != null : "Outcome cannot be null";
+				assert outcome.getError() == null : "getError() should be null";
+				_assertOneOf( outcome.getCode(), "A", "B" );
+				GoalResponse goal = api.rewardAsync( opts, "g-example" ).get( 5, TimeUnit.SECONDS );
+				assert goal.getAcceptedValue("a-example") == 1.0 : "Accepted value should be 1.0";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class AsyncCancelTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setDelay(200).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setMaxThreads(1) );
+				RequestOptions opts = new RequestOptions(null);
+				CompletableFuture<SelectResponse> first = api.selectAsync( opts, "a-example" );
+				for( int i = 0; i < 100 && api.getQueueDepth() > 0; i++ ) Thread.sleep(5); // until the first one runs
+				CompletableFuture<SelectResponse> second = api.selectAsync( opts, "a-example" );
+				assert second.cancel( true ) : "queued request should be cancellable";
+				assert api.getQueueDepth() == 0 : "cancelled request should leave the queue";
+				assert first.get( 5, TimeUnit.SECONDS ).getError() == null : "getError() should be null";
+				assert stub.getRequestCount() == 1 : "the cancelled request should never be sent";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class RewardBatchTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRewardBatching(2, 1000) );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse outcome = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert outcome.getError() == null : "getError() should be null";
+				// both rewards go out in one request, as soon as the batch is full
+				CompletableFuture<GoalResponse> first = api.rewardAsync( opts, "g-example" );
+				CompletableFuture<GoalResponse> second = api.rewardAsync( opts, "g-other", 2.0 );
+				GoalResponse goal = first.get( 500, TimeUnit.MILLISECONDS );
+				assert goal.getError() == null : "getError() should be null";
+				_assertEqual( goal.getGoalCode(), "g-example" );
+				assert goal.getAcceptedValue("a-example") == 1.0 : "Accepted value should be 1.0";
+				GoalResponse other = second.get( 500, TimeUnit.MILLISECONDS );
+				_assertEqual( other.getGoalCode(), "g-other" );
+				assert other.getAcceptedValue("a-example") == 2.0 : "Accepted value should be 2.0";
+				assert stub.getRequestCount() == 2 : "the rewards should be sent in one request, after the selection";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class SelectCoalescingTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setSelectCoalescing(10, 20) );
+				RequestOptions opts = new RequestOptions(null)
+					.setDefault("a-invalid", "B");
+				CompletableFuture<SelectResponse> first = api.selectAsync( opts, "a-example" );
+				CompletableFuture<SelectResponse> second = api.selectAsync( opts, "a-invalid" );
+				SelectResponse outcome = first.get( 5, TimeUnit.SECONDS );
+				SelectResponse invalid = second.get( 5, TimeUnit.SECONDS );
+				assert outcome.getError() == null : "getError() should be null";
+				_assertEqual( outcome.getAgent(), "a-example" );
+				_assertOneOf( outcome.getCode(), "A", "B" );
+				_assertEqual( invalid.getAgent(), "a-invalid" );
+				_assertEqual( invalid.getCode(), "B" );
+				_assertEqual( invalid.getError().getMessage(), "unknown agent" );
+				assert stub.getRequestCount() == 1 : "both selections should be sent in one request";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class SelectionCacheTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setSelectionCache(100, 60000) );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse first = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert first.getError() == null : "getError() should be null";
+				SelectResponse second = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert second == first : "second selection should come from the cache";
+				assert api.getSelectionCache().getHits() == 1 : "getHits() should be 1";
+				assert api.getSelectionCache().getMisses() == 1 : "getMisses() should be 1";
+				assert stub.getRequestCount() == 1 : "a cached selection should not be sent";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class StaleWhileRevalidateTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setSelectionCache(100, 1).setStaleWhileRevalidate(60000) );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse first = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert first.getError() == null : "getError() should be null";
+				assert ! first.isStale() : "first selection should not be stale";
+				Thread.sleep( 10 );
+				SelectResponse second = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert second.isStale() : "expired selection should be served stale";
+				_assertEqual( second.getCode(), first.getCode() );
+				assert api.getSelectionCache().getStaleHits() == 1 : "getStaleHits() should be 1";
+				// the stale selection is refreshed in the background
+				for( int i = 0; i < 100 && stub.getRequestCount() < 2; i++ ) Thread.sleep(10);
+				assert stub.getRequestCount() == 2 : "the stale selection should be refreshed";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class LoggerTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			final List<String> messages = new java.util.concurrent.CopyOnWriteArrayList<String>();
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-secret-key",
+					new ClientOptions().setLogger(new Logger() {
+						public boolean isEnabled(LogLevel level) { return level.compareTo(LogLevel.Debug) >= 0; }
+						public void log(LogLevel level, String message) { messages.add(level + " " + message); }
+					})
+				);
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "getError() should be null";
+				assert messages.size() > 0 : "request should be logged at level Debug";
+				for( String message : messages ) {
+					assert ! message.contains("api-secret-key") : "API key should not be logged: " + message;
+				}
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class MetricsTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				RequestOptions opts = new RequestOptions(null);
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "getError() should be null";
+				assert api.getMetrics().getSelectLatency().get("a-example").getCount() == 1 : "select latency should be recorded";
+				assert api.getMetrics().getPhase("parse").getCount() == 1 : "parse phase should be recorded";
+				assert api.getMetrics().getFallbacks().isEmpty() : "getFallbacks() should be empty";
+				assert api.getMetrics().toPrometheus().contains("conductrics_select_seconds_count{agent=\"a-example\"} 1") : "toPrometheus() should include the select latency";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class StubErrorTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setErrorRate(1.0, 503).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				RequestOptions opts = new RequestOptions(null).setDefault("a-example", "E");
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() != null : "getError() should not be null";
+				_assertEqual( response.getCode(), "E" );
+				assert stub.getFaultCount() == 1 : "getFaultCount() should be 1";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class StubSlowBodyTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setSlowBody(300).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				RequestOptions opts = new RequestOptions(null).setTimeout(200);
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() instanceof java.net.SocketTimeoutException : "a slow body should time out: " + response.getError();
+				_assertEqual( response.getCode(), "A" );
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class GzipTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setGzipRequests(64) );
+				RequestOptions opts = new RequestOptions(null);
+				for( int i = 0; i < 10; i++ ) opts.setInput( "input-" + i, "value-" + i );
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "getError() should be null";
+				_assertEqual( response.getCode(), "B" );
+				assert stub.getGzipRequestCount() == 1 : "request should be compressed";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class RetryTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setErrorRate(0.5, 503).setSeed(16).start();
+				RetryPolicy retry = new RetryPolicy().setMaxAttempts(10).setBackoff(1, 10).setBudget(null);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRetryPolicy(retry) );
+				RequestOptions opts = new RequestOptions(null).setTimeout(5000).setDefault("a-example", "E");
+				for( int i = 0; i < 10; i++ ) {
+					SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+					assert response.getError() == null : "retries should hide the errors: " + response.getError();
+					_assertEqual( response.getCode(), "B" );
+				}
+				assert stub.getFaultCount() > 0 : "some requests should fail";
+				Long retries = api.getMetrics().getRetries().get("HttpStatusException");
+				assert retries != null && retries == stub.getFaultCount() : "every failure should be retried: " + retries;
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class RetryBudgetTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setErrorRate(1.0, 503).start();
+				RetryPolicy retry = new RetryPolicy().setMaxAttempts(3).setBackoff(1, 10).setBudget(new RetryBudget(0, 1)); // one retry, ever
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRetryPolicy(retry) );
+				RequestOptions opts = new RequestOptions(null).setDefault("a-example", "E");
+				for( int i = 0; i < 2; i++ ) {
+					SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+					assert response.getError() != null : "getError() should not be null";
+					_assertEqual( response.getCode(), "E" );
+				}
+				assert stub.getRequestCount() == 3 : "only one retry should be made: " + stub.getRequestCount();
+				assert api.getMetrics().getRetriesDenied() == 2 : "getRetriesDenied() should be 2";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class HedgeTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				// only the first request is slow
+				stub = new StubServer(0).setLatency(new StubServer.Latency() {
+					private int count = 0;
+					public int next(java.util.Random random) { return count++ == 0 ? 3000 : 0; }
+				}).start();
+				HedgePolicy hedge = new HedgePolicy().setDelayBounds(50, 50);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setHedgePolicy(hedge) );
+				RequestOptions opts = new RequestOptions(null).setDefault("a-example", "E");
+				long start = System.nanoTime();
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assert response.getError() == null : "getError() should be null: " + response.getError();
+				_assertEqual( response.getCode(), "B" );
+				assert ms < 1000 : "the hedged request should answer first, took " + ms + "ms";
+				assert stub.getRequestCount() == 2 : "getRequestCount() should be 2";
+				assert api.getMetrics().getHedges() == 1 : "getHedges() should be 1";
+				assert api.getMetrics().getHedgeWins() == 1 : "getHedgeWins() should be 1";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class CircuitBreakerTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setErrorRate(1.0, 503).start();
+				final List<CircuitBreaker.State> changes = new java.util.concurrent.CopyOnWriteArrayList<>();
+				CircuitBreaker breaker = new CircuitBreaker().setWindow(4, 4).setOpenDuration(200).setProbes(1);
+				breaker.addListener(new Callback<CircuitBreaker.State>() {
+					public void onValue(CircuitBreaker.State state) { changes.add(state); }
+				});
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setCircuitBreaker(breaker) );
+				RequestOptions opts = new RequestOptions(null).setDefault("a-example", "E");
+				for( int i = 0; i < 4; i++ ) api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert breaker.getState() == CircuitBreaker.State.Open : "the circuit should be open";
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() instanceof CircuitOpenException : "getError() should be CircuitOpenException";
+				_assertEqual( response.getCode(), "E" );
+				assert stub.getRequestCount() == 4 : "an open circuit should not send requests";
+				stub.setErrorRate(0, 503);
+				Thread.sleep(250);
+				response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "the probe should succeed: " + response.getError();
+				assert breaker.getState() == CircuitBreaker.State.Closed : "the circuit should be closed";
+				_assertEqual( changes.toString(), "[Open, HalfOpen, Closed]" );
+				assert api.getMetrics().getShortCircuited() == 1 : "getShortCircuited() should be 1";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class DeadlineTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setDelay(500).start();
+				// one thread: the second select waits in the queue, and its deadline includes that wait
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setMaxThreads(1) );
+				RequestOptions opts = new RequestOptions(null).setTimeout(200).setDefault("a-example", "E");
+				final java.util.concurrent.atomic.AtomicInteger answers = new java.util.concurrent.atomic.AtomicInteger();
+				final java.util.concurrent.atomic.AtomicReference<String> thread = new java.util.concurrent.atomic.AtomicReference<>();
+				Callback<SelectResponse> count = new Callback<SelectResponse>() {
+					public void onValue(SelectResponse response) {
+						answers.incrementAndGet();
+						thread.set(Thread.currentThread().getName());
+					}
+				};
+				long start = System.nanoTime();
+				api.select( opts, "a-example", count );
+				SelectResponse response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assert response.getError() instanceof java.net.SocketTimeoutException : "getError() should be a SocketTimeoutException: " + response.getError();
+				_assertEqual( response.getCode(), "E" );
+				assert ms >= 190 && ms < 400 : "the callback should fire at the deadline, not after " + ms + "ms";
+				Thread.sleep(600); // the late response of the first select is ignored
+				assert answers.get() == 1 : "the callback should fire exactly once, not " + answers.get() + " times";
+				assert ! "conductrics-timer".equals(thread.get()) : "the callback should not run on the timer thread";
+				api.shutdown();
+				// a reward that expires while it waits for its batch was never sent, so it says nothing about the API
+				CircuitBreaker breaker = new CircuitBreaker().setWindow(4, 4);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setCircuitBreaker(breaker).setRewardBatching(10, 1000) );
+				GoalResponse goal = api.rewardAsync( new RequestOptions(null).setTimeout(100), "g-example" ).get( 5, TimeUnit.SECONDS );
+				assert goal.getError() instanceof java.net.SocketTimeoutException : "getError() should be a SocketTimeoutException: " + goal.getError();
+				assert breaker.getCurrentFailureRate() == 0 : "the circuit breaker should not count it";
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class RewardJournalTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			java.io.File file = null;
+			try {
+				stub = new StubServer(0).setErrorRate(1.0, 503).start();
+				file = java.io.File.createTempFile("rewards", ".journal");
+				file.delete();
+				RewardJournal journal = new RewardJournal(file).setFlushInterval(60000);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRewardJournal(journal) );
+				RequestOptions opts = new RequestOptions("s-journal");
+				GoalResponse goal = api.rewardAsync( opts, "g-example", 2.5 ).get( 5, TimeUnit.SECONDS );
+				assert goal.getError() != null : "the reward should fail";
+				assert journal.getPending() == 1 : "the failed reward should stay in the journal";
+				// the process stops, and the next one sends the reward again
+				api.shutdown();
+				journal.close();
+				stub.setErrorRate(0, 503);
+				journal = new RewardJournal(file).setFlushInterval(100);
+				assert journal.getPending() == 1 : "the reward should be read back from the file";
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRewardJournal(journal) );
+				for( int i = 0; i < 50 && journal.getPending() > 0; i++ ) Thread.sleep(100);
+				assert journal.getPending() == 0 : "the reward should be sent again";
+				assert journal.getReplayed() == 1 : "getReplayed() should be 1";
+				assert stub.getRequestCount() == 2 : "getRequestCount() should be 2";
+				api.shutdown();
+				journal.close();
+				// a reward the API refuses is given up on, instead of being sent again until it is too old
+				stub.setErrorRate(1.0, 400);
+				journal = new RewardJournal(file).setFlushInterval(100);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRewardJournal(journal) );
+				goal = api.rewardAsync( new RequestOptions("s-refused"), "g-unknown" ).get( 5, TimeUnit.SECONDS );
+				assert goal.getError() != null : "the reward should fail";
+				for( int i = 0; i < 50 && journal.getPending() > 0; i++ ) Thread.sleep(100);
+				assert journal.getPending() == 0 : "the refused reward should not stay in the journal";
+				assert journal.getRefused() == 1 : "getRefused() should be 1";
+				api.shutdown();
+				journal.close();
+				// a small journal, with some rewards failing: it is compacted in the background to keep taking rewards
+				file.delete();
+				stub.setErrorRate(0.3, 503).setSeed(7);
+				journal = new RewardJournal(file, 1024).setFlushInterval(60000);
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setRewardJournal(journal) );
+				for( int i = 0; i < 100; i++ ) {
+					api.rewardAsync( new RequestOptions("s-compact"), "g-example" ).get( 5, TimeUnit.SECONDS );
+				}
+				long journaled = journal.getAcked() + journal.getPending();
+				assert journaled + journal.getRejected() == 100 : "every reward should be journaled or rejected";
+				assert journaled > 40 : "the journal should make room for more than it holds at once, not " + journaled;
+				api.shutdown();
+				journal.close();
+				assert ! new java.io.File(file.getPath() + ".tmp").exists() : "the copy should replace the journal";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+				if( file != null ) file.delete();
+			}
+		}
+	}
+
+	static class TemplateTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			java.util.Locale locale = java.util.Locale.getDefault();
+			try {
+				stub = new StubServer(0).start();
+				api = new Conductrics( stub.getUrl(), "api-stub" );
+				java.util.Locale.setDefault(java.util.Locale.GERMANY); // a decimal comma
+				RequestOptions opts = new RequestOptions("s-ignored").setUserAgent("ua-template").setInput("price", 1.5).setTrait("size", 3)
+					.setAllowedVariations("a-example", "C").setDefault("a-example", "E");
+				_assertEqual( opts.getInput("price"), "1.500000" );
+				RequestTemplate template = opts.toTemplate();
+				opts.setAllowedVariations("a-example", "D"); // the template keeps its own copy
+				RequestOptions a = template.forSession("s-a");
+				RequestOptions b = template.forSession(null);
+				_assertEqual( a.getSession(), "s-a" );
+				assert b.getSession() != null && ! b.getSession().equals("s-a") : "forSession(null) should make a new session";
+				_assertEqual( a.getParams().get("session"), "s-a" );
+				_assertEqual( a.getUserAgent(), "ua-template" );
+				_assertEqual( a.getTraits().get(0), "size:3" );
+				_assertEqual( a.getDefault("a-example"), "E" );
+				try {
+					a.setInput("price", "2");
+					assert false : "a RequestOptions from a template should not change";
+				} catch( UnsupportedOperationException e ) { }
+				a.getInputs().put("price", "2"); // a copy
+				_assertEqual( b.getInput("price"), "1.500000" );
+				SelectResponse response = api.selectAsync( a, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "getError() should be null: " + response.getError();
+				_assertEqual( response.getCode(), "C" );
+				// a plain RequestOptions reuses its snapshot until a setter changes it
+				response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				_assertEqual( response.getCode(), "D" );
+				opts.setSession("s-plain");
+				response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				_assertEqual( response.getCode(), "D" );
+				opts.setAllowedVariations("a-example", "F");
+				response = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				_assertEqual( response.getCode(), "F" );
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				java.util.Locale.setDefault(locale);
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class ConcurrentOptionsTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).start();
+				final int threads = 8, calls = 200;
+				// room in the queue for the whole burst: this is about sharing the options, not about the throughput of the connections
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setMaxQueueSize(threads * calls) );
+				final RequestOptions opts = new RequestOptions(null).setTimeout(10000);
+				final List<CompletableFuture<SelectResponse>> futures = new java.util.concurrent.CopyOnWriteArrayList<>();
+				final java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(1);
+				Thread[] workers = new Thread[threads];
+				for( int t = 0; t < threads; t++ ) {
+					final int id = t;
+					workers[t] = new Thread(new Runnable() {
+						public void run() {
+							try {
+								ready.await();
+							} catch( InterruptedException e ) {
+								return;
+							}
+							// every thread changes the shared options while the others are sending requests with them
+							for( int i = 0; i < calls; i++ ) {
+								opts.setInput("t" + id + "-" + i, i);
+								opts.setAllowedVariations("a-example", i % 2 == 0 ? "C" : "D");
+								futures.add( api.selectAsync( opts, "a-example" ) );
+							}
+						}
+					});
+					workers[t].start();
+				}
+				ready.countDown();
+				for( Thread worker : workers ) worker.join();
+				for( CompletableFuture<SelectResponse> future : futures ) {
+					SelectResponse response = future.get( 10, TimeUnit.SECONDS );
+					assert response.getError() == null : "getError() should be null: " + response.getError();
+					assert response.getCode().equals("C") || response.getCode().equals("D") : "getCode() should be C or D: " + response.getCode();
+				}
+				assert futures.size() == threads * calls : "every select should be answered";
+				assert opts.getInputs().size() == threads * calls : "no update should be lost, getInputs().size() is " + opts.getInputs().size();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class OrderedSessionsTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setLatency(StubServer.Latency.uniform(0, 40)).start();
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setOrderedSessions(true) );
+				final int sessions = 20, steps = 5;
+				final List<List<Integer>> answered = new java.util.ArrayList<>();
+				final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(sessions * steps);
+				long start = System.nanoTime();
+				for( int i = 0; i < sessions; i++ ) {
+					final List<Integer> order = java.util.Collections.synchronizedList(new java.util.ArrayList<Integer>());
+					answered.add(order);
+					RequestOptions opts = new RequestOptions("s-ordered-" + i);
+					for( int step = 0; step < steps; step++ ) {
+						final int n = step;
+						Callback<SelectResponse> record = new Callback<SelectResponse>() {
+							public void onValue(SelectResponse response) {
+								order.add(n);
+								done.countDown();
+							}
+						};
+						// provisional, confirm, then plain selections: each must be answered before the next is sent
+						if( step == 0 ) {
+							api.select( opts.setProvisional(true), "a-example", record );
+						} else if( step == 1 ) {
+							api.select( opts.setConfirm(true), "a-example", record );
+						} else {
+							api.select( opts.setConfirm(false), "a-example", record );
+						}
+					}
+				}
+				assert done.await( 10, TimeUnit.SECONDS ) : "every select should be answered";
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				for( List<Integer> order : answered ) {
+					_assertEqual( order.toString(), "[0, 1, 2, 3, 4]" );
+				}
+				// one after the other, the 100 selects would take about 2 seconds
+				assert ms < 1500 : "sessions should run in parallel, not take " + ms + "ms";
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	static class HttpClientTest extends TestCase {
+		@Override public void run() {
+			StubServer stub = null;
+			try {
+				stub = new StubServer(0).setDelay(200).start();
+				// one thread would send one request at a time with HttpURLConnection, HttpClient does not need any
+				api = new Conductrics( stub.getUrl(), "api-stub", new ClientOptions().setHttpClient(true).setMaxThreads(1).setRetryPolicy(new RetryPolicy()) );
+				RequestOptions opts = new RequestOptions(null).setTimeout(5000).setAllowedVariations("a-example", "C");
+				List<CompletableFuture<SelectResponse>> futures = new LinkedList<>();
+				long start = System.nanoTime();
+				for( int i = 0; i < 100; i++ ) {
+					futures.add( api.selectAsync( opts.setSession("s-http-" + i), "a-example" ) );
+				}
+				for( CompletableFuture<SelectResponse> future : futures ) {
+					SelectResponse response = future.get( 10, TimeUnit.SECONDS );
+					assert response.getError() == null : "getError() should be null: " + response.getError();
+					_assertEqual( response.getCode(), "C" );
+				}
+				long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assert ms < 5000 : "the selects should be in flight together, not take " + ms + "ms";
+				GoalResponse goal = api.rewardAsync( opts, "g-example", 2.0 ).get( 5, TimeUnit.SECONDS );
+				assert goal.getError() == null : "getError() should be null: " + goal.getError();
+				// errors are retried, and reported like with HttpURLConnection
+				stub.setDelay(0).setErrorRate(1.0, 503);
+				SelectResponse failed = api.selectAsync( opts, "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert failed.getError() instanceof com.conductrics.HttpStatusException : "getError() should be an HttpStatusException: " + failed.getError();
+				assert api.getMetrics().getRetries().size() > 0 : "the 503 should be retried";
+				// the deadline still applies
+				stub.setDelay(1000).setErrorRate(0, 503);
+				SelectResponse late = api.selectAsync( new RequestOptions(null).setTimeout(100), "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert late.getError() instanceof java.net.SocketTimeoutException : "getError() should be a SocketTimeoutException: " + late.getError();
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			} finally {
+				if( stub != null ) stub.stop();
+			}
+		}
+	}
+
+	// An in-process Transport: the first attempt of each request fails, the retry is answered (compressed) like the API would.
+	static class FakeTransport implements Transport {
+		final java.util.concurrent.atomic.AtomicInteger calls = new java.util.concurrent.atomic.AtomicInteger();
+		volatile boolean gzipped = false; // a request body arrived compressed
+		volatile boolean silent = false; // never answer
+		public Transport.Cancellable send(String method, String url, Map<String, String> headers, byte[] body, long deadline, final Transport.Listener listener) {
+			Transport.Cancellable cancellable = new Transport.Cancellable() {
+				public void cancel() { listener.onError( new java.util.concurrent.CancellationException("request cancelled") ); }
+			};
+			if( silent ) return cancellable;
+			if( calls.incrementAndGet() % 2 == 1 ) {
+				listener.onError( new java.net.SocketException("connection reset") );
+				return cancellable;
+			}
+			try {
+				java.io.InputStream in = new java.io.ByteArrayInputStream(body);
+				if( "gzip".equals(headers.get("content-encoding")) ) {
+					gzipped = true;
+					in = new java.util.zip.GZIPInputStream(in);
+				}
+				org.json.JSONObject request = new org.json.JSONObject( new org.json.JSONTokener(in) );
+				java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+				java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(out);
+				gzip.write( StubServer.answer(request).toString().getBytes("UTF-8") );
+				gzip.close();
+				listener.onResponse( new java.io.ByteArrayInputStream(out.toByteArray()), "gzip" );
+			} catch( java.io.IOException e ) {
+				listener.onError( e );
+			}
+			return cancellable;
+		}
+	}
+
+	static class TransportTest extends TestCase {
+		@Override public void run() {
+			try {
+				FakeTransport transport = new FakeTransport();
+				api = new Conductrics( "http://localhost:1/never-used", "api-fake", new ClientOptions()
+					.setTransport(transport).setRetryPolicy(new RetryPolicy()).setGzipRequests(1) );
+				RequestOptions opts = new RequestOptions(null).setTimeout(5000).setAllowedVariations("a-example", "C");
+				for( int i = 0; i < 20; i++ ) opts.setInput("input-" + i, "a value that compresses well"); // worth compressing
+				SelectResponse response = api.selectAsync( opts.setSession("s-transport"), "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert response.getError() == null : "getError() should be null: " + response.getError();
+				_assertEqual( response.getCode(), "C" );
+				assert transport.calls.get() == 2 : "the failed attempt should be retried, calls: " + transport.calls.get();
+				assert transport.gzipped : "the request body should be compressed for the transport";
+				assert api.getMetrics().getRetries().size() > 0 : "the retry should be counted";
+				GoalResponse goal = api.rewardAsync( opts, "g-example", 2.0 ).get( 5, TimeUnit.SECONDS );
+				assert goal.getError() == null : "getError() should be null: " + goal.getError();
+				// the deadline still applies, and cancels the request
+				transport.silent = true;
+				SelectResponse late = api.selectAsync( new RequestOptions(null).setTimeout(100), "a-example" ).get( 5, TimeUnit.SECONDS );
+				assert late.getError() instanceof java.net.SocketTimeoutException : "getError() should be a SocketTimeoutException: " + late.getError();
+				api.shutdown();
+				finish(null);
+			} catch( AssertionError err ) {
+				finish(err);
+			} catch( Exception err ) {
+				finish(new AssertionError(err));
+			}
+		}
+	}
+
 }
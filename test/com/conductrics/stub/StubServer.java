@@ -0,0 +1,317 @@
+package com.conductrics.stub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A StubServer answers Conductrics API requests locally, so that the SDK can be tested and benchmarked without a network.
+ * It implements the exec protocol of /agent-api: "commands" with a/g/s/c in, "data.items" with a/c/p/s/md and g/rs out.
+ * Like the real API, it accepts gzip-compressed requests, and compresses responses for clients that accept gzip.
+ * Every selection is answered with the first allowed variation (or "B"), and every reward is accepted for "a-example";
+ * agents whose code starts with "a-invalid" are unknown, and left out of the answer like the real API does.
+ * Faults can be injected: response latency from a distribution, HTTP errors, dropped connections, and slow or partial bodies.
+ * All randomness comes from one seeded Random, so a run can be repeated.
+ * <pre>
+ * StubServer stub = new StubServer(0).setLatency(Latency.logNormal(20, 200)).setErrorRate(0.01, 503).start();
+ * Conductrics api = new Conductrics(stub.getUrl(), "api-key");
+ * </pre>
+ * It can also run on its own, see main().
+ */
+public class StubServer {
+	static {
+		// otherwise each response body waits for a delayed ACK of its headers (about 40ms), like no real API server does
+		if( System.getProperty("sun.net.httpserver.nodelay") == null ) System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/** A Latency gives the delay (in milliseconds) before each response. */
+	public static abstract class Latency {
+		public abstract int next(Random random);
+
+		/** Always the same delay. */
+		public static Latency fixed(final int ms) {
+			return new Latency() {
+				public int next(Random random) { return ms; }
+				public String toString() { return "fixed(" + ms + ")"; }
+			};
+		}
+		/** A delay between min and max, all equally likely. */
+		public static Latency uniform(final int min, final int max) {
+			if( max < min ) throw new IllegalArgumentException("max < min");
+			return new Latency() {
+				public int next(Random random) { return min + random.nextInt(max - min + 1); }
+				public String toString() { return "uniform(" + min + "," + max + ")"; }
+			};
+		}
+		/** A long-tailed delay, like real network latency: half the delays are below median, 99% are below p99. */
+		public static Latency logNormal(final int median, final int p99) {
+			if( median < 1 || p99 < median ) throw new IllegalArgumentException("need 1 <= median <= p99");
+			final double mu = Math.log(median);
+			final double sigma = (Math.log(p99) - mu) / 2.326; // 2.326 is the 99th percentile of the standard normal distribution
+			return new Latency() {
+				public int next(Random random) { return (int)Math.round(Math.exp(mu + sigma * random.nextGaussian())); }
+				public String toString() { return "logNormal(" + median + "," + p99 + ")"; }
+			};
+		}
+		/** Parse "20" (fixed), "10-50" (uniform), or "20/200" (logNormal median/p99), as used by main(). */
+		public static Latency parse(String spec) {
+			if( spec.contains("-") ) {
+				String[] parts = spec.split("-");
+				return uniform(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			}
+			if( spec.contains("/") ) {
+				String[] parts = spec.split("/");
+				return logNormal(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			}
+			return fixed(Integer.parseInt(spec));
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random = new Random(0);
+	private volatile Latency latency = Latency.fixed(0);
+	private volatile double errorRate = 0;
+	private volatile int errorStatus = 500;
+	private volatile double dropRate = 0;
+	private volatile double partialRate = 0;
+	private volatile int slowBody = 0;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong faults = new AtomicLong();
+	private final AtomicLong gzipRequests = new AtomicLong();
+	private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet(); // one per connection
+
+	/** Construct a StubServer on the given port of the loopback interface, 0 picks a free port. */
+	public StubServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public StubServer start() {
+		server.start();
+		return this;
+	}
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/** Return the API URL to give to the Conductrics constructor. */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/v3/agent-api";
+	}
+
+	/** Delay every response by this many milliseconds, to simulate the latency of the real API. */
+	public StubServer setDelay(int ms) {
+		return setLatency(Latency.fixed(ms));
+	}
+	/** Delay each response by a time drawn from a Latency distribution. */
+	public StubServer setLatency(Latency value) {
+		latency = value;
+		return this;
+	}
+	/** Answer this fraction (0-1) of the requests with an HTTP error status, eg 500 or 503, instead of a result. */
+	public StubServer setErrorRate(double rate, int status) {
+		errorRate = rate;
+		errorStatus = status;
+		return this;
+	}
+	/** Close the connection of this fraction (0-1) of the requests without any response. */
+	public StubServer setDropRate(double rate) {
+		dropRate = rate;
+		return this;
+	}
+	/** Send only the first half of the body for this fraction (0-1) of the requests, then close the connection. */
+	public StubServer setPartialRate(double rate) {
+		partialRate = rate;
+		return this;
+	}
+	/** Send every body one byte at a time, waiting this many milliseconds between bytes, 0 sends it at once. */
+	public StubServer setSlowBody(int ms) {
+		slowBody = ms;
+		return this;
+	}
+	/** Restart the sequence of random latencies and faults, to repeat a run exactly. */
+	public StubServer setSeed(long seed) {
+		synchronized( random ) {
+			random.setSeed(seed);
+		}
+		return this;
+	}
+
+	/** Return the number of requests received so far. */
+	public long getRequestCount() { return requests.get(); }
+	/** Return the number of connections the requests arrived on, fewer than the requests if connections were kept alive. */
+	public int getConnectionCount() { return clients.size(); }
+	/** Return the number of requests that arrived compressed with gzip. */
+	public long getGzipRequestCount() { return gzipRequests.get(); }
+	/** Return the number of requests that were answered with an error, dropped, or cut short. */
+	public long getFaultCount() { return faults.get(); }
+
+	private static void sleep(long ms) {
+		if( ms <= 0 ) return;
+		try {
+			Thread.sleep(ms);
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		clients.add(exchange.getRemoteAddress());
+		InputStream in = exchange.getRequestBody();
+		if( "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")) ) {
+			in = new GZIPInputStream(in);
+			gzipRequests.incrementAndGet();
+		}
+		JSONObject request = new JSONObject(new String(readAll(in), StandardCharsets.UTF_8));
+		int delay;
+		double fault;
+		synchronized( random ) {
+			delay = latency.next(random);
+			fault = random.nextDouble();
+		}
+		sleep(delay);
+		if( fault < dropRate ) {
+			faults.incrementAndGet();
+			return; // closed by the caller, without a response
+		}
+		fault -= dropRate;
+		if( fault < errorRate ) {
+			faults.incrementAndGet();
+			byte[] body = new JSONObject().put("status", errorStatus).put("error", "injected by StubServer").toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(errorStatus, body.length);
+			exchange.getResponseBody().write(body);
+			return;
+		}
+		fault -= errorRate;
+		byte[] body = answer(request).toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if( accept != null && accept.contains("gzip") ) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(body);
+			gzip.close();
+			body = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		int length = body.length;
+		if( fault < partialRate ) {
+			faults.incrementAndGet();
+			length = body.length / 2;
+		}
+		if( slowBody > 0 ) {
+			for( int i = 0; i < length; i++ ) {
+				out.write(body[i]);
+				out.flush();
+				sleep(slowBody);
+			}
+		} else {
+			out.write(body, 0, length);
+		}
+		if( length < body.length ) {
+			out.flush();
+			// the server closes the connection of an exchange that ends with an exception
+			throw new IOException("partial body");
+		}
+		out.close();
+	}
+
+	/** Return the response to one API request, as the real API would give it. */
+	public static JSONObject answer(JSONObject request) {
+		JSONArray commands = request.optJSONArray("commands");
+		JSONArray items = new JSONArray();
+		for( int i = 0; commands != null && i < commands.length(); i++ ) {
+			JSONObject command = commands.getJSONObject(i);
+			if( command.has("a") ) {
+				if( command.getString("a").startsWith("a-invalid") ) continue;
+				JSONArray allowed = command.optJSONArray("c");
+				items.put(new JSONObject()
+					.put("a", command.getString("a"))
+					.put("c", allowed != null && allowed.length() > 0 ? allowed.getString(0) : "B")
+					.put("p", "r")
+					.put("s", "p".equals(command.optString("s")) ? "p" : "ok")
+					.put("md", new JSONObject()));
+			} else if( command.has("g") ) {
+				items.put(new JSONObject()
+					.put("g", command.getString("g"))
+					.put("rs", new JSONArray().put(new JSONObject().put("a", "a-example").put("v", command.optDouble("v", 1.0)))));
+			}
+		}
+		return new JSONObject()
+			.put("status", 200)
+			.put("data", new JSONObject()
+				.put("items", items)
+				.put("traits", new JSONArray())
+				.put("log", new JSONArray()));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while( (n = in.read(buf)) > 0 ) out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+
+	/** Run a StubServer until the process is stopped.
+	 * Options: -port N (default 8080), -latency SPEC (see Latency.parse), -errors RATE[:STATUS], -drops RATE, -partial RATE, -slow MS, -seed N.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = 8080;
+		for( int i = 0; i + 1 < args.length; i += 2 ) {
+			if( args[i].equals("-port") ) port = Integer.parseInt(args[i + 1]);
+		}
+		StubServer stub = new StubServer(port);
+		for( int i = 0; i + 1 < args.length; i += 2 ) {
+			String value = args[i + 1];
+			switch( args[i] ) {
+				case "-port": break;
+				case "-latency": stub.setLatency(Latency.parse(value)); break;
+				case "-errors":
+					String[] parts = value.split(":");
+					stub.setErrorRate(Double.parseDouble(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 500);
+					break;
+				case "-drops": stub.setDropRate(Double.parseDouble(value)); break;
+				case "-partial": stub.setPartialRate(Double.parseDouble(value)); break;
+				case "-slow": stub.setSlowBody(Integer.parseInt(value)); break;
+				case "-seed": stub.setSeed(Long.parseLong(value)); break;
+				default: throw new IllegalArgumentException("unknown option: " + args[i]);
+			}
+		}
+		stub.start();
+		System.out.println("StubServer listening on " + stub.getUrl());
+	}
+}